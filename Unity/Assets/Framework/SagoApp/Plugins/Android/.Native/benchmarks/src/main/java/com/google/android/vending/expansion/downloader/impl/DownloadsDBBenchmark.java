@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Context;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress updates the download threads post to {@link DownloadsDB},
+ * against a stubbed database that only counts statements. The scores are the
+ * cost on the download thread; the scheduled flushes run on their own thread
+ * as they do on the device.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {
+        "-Xms256m", "-Xmx256m"
+})
+@State(Scope.Thread)
+public class DownloadsDBBenchmark {
+    private static final long FILE_SIZE = 512L * 1024 * 1024;
+
+    private DownloadsDB mDB;
+    private DownloadInfo mInfo;
+    private DownloadSegment[] mSegments;
+
+    @Setup
+    public void setUp() {
+        mDB = DownloadsDB.getDB(new Context());
+        mInfo = new DownloadInfo(0, "main.42.com.sagosago.benchmarks.obb",
+                "com.sagosago.benchmarks");
+        mInfo.mTotalBytes = FILE_SIZE;
+        mSegments = DownloadSegment.split(FILE_SIZE, Constants.SEGMENT_COUNT);
+    }
+
+    /**
+     * Writing the byte count straight to the database, as every progress
+     * update did before the journal.
+     */
+    @Benchmark
+    public void updateCurrentBytes() {
+        advance();
+        mDB.updateDownloadCurrentBytes(mInfo);
+    }
+
+    @Benchmark
+    public void journalCurrentBytes() {
+        advance();
+        mDB.journalDownloadCurrentBytes(mInfo);
+    }
+
+    @Benchmark
+    public void journalSegments() {
+        advance();
+        mDB.journalSegmentsCurrentBytes(mInfo, mSegments);
+    }
+
+    /**
+     * A journal entry for the file and its segments followed by the flush
+     * that writes them.
+     */
+    @Benchmark
+    public void journalAndFlush() {
+        advance();
+        mDB.journalDownloadCurrentBytes(mInfo);
+        mDB.journalSegmentsCurrentBytes(mInfo, mSegments);
+        mDB.flushProgress();
+    }
+
+    private void advance() {
+        mInfo.mCurrentBytes = (mInfo.mCurrentBytes + Constants.BUFFER_SIZE) % FILE_SIZE;
+        mInfo.mCrc32 = mInfo.mCurrentBytes;
+        for (DownloadSegment segment : mSegments) {
+            segment.mCurrentBytes = (segment.mCurrentBytes + Constants.BUFFER_SIZE)
+                    % segment.getLength();
+            segment.mCrc32 = segment.mCurrentBytes;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy loop of {@link DownloadThread}, from the response body to the
+ * destination file, over an in-memory body of {@link #FILE_SIZE} bytes. Each
+ * operation copies the whole body, so bytes per second are the score times
+ * FILE_SIZE.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {
+        "-Xms256m", "-Xmx256m"
+})
+public class TransferBenchmark {
+    static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    @State(Scope.Thread)
+    public static class Destination {
+        byte[] mBody;
+        File mFile;
+        RandomAccessFile mRandomAccessFile;
+        FileChannel mChannel;
+
+        @Setup
+        public void setUp() throws IOException {
+            mBody = new byte[FILE_SIZE];
+            new Random(0).nextBytes(mBody);
+            mFile = File.createTempFile("transfer", ".obb");
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mRandomAccessFile.setLength(FILE_SIZE);
+            mChannel = mRandomAccessFile.getChannel();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            mChannel.close();
+            mRandomAccessFile.close();
+            mFile.delete();
+        }
+
+        ReadableByteChannel openBody() {
+            return new BodyChannel(mBody);
+        }
+    }
+
+    /**
+     * A response body that always has the rest of its data ready, so that
+     * every read fills the buffer like on a fast link.
+     */
+    static class BodyChannel implements ReadableByteChannel {
+        private final byte[] mData;
+        private int mPosition;
+
+        BodyChannel(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (mPosition == mData.length) {
+                return -1;
+            }
+            int length = Math.min(dst.remaining(), mData.length - mPosition);
+            dst.put(mData, mPosition, length);
+            mPosition += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Chunk {
+        /** The chunk sizes {@link ChunkSizer} moves between */
+        @Param({
+                "4096", "65536", "262144"
+        })
+        public int chunkSize;
+
+        BufferPool mPool;
+
+        @Setup
+        public void setUp() {
+            mPool = new BufferPool(Constants.MAX_BUFFER_SIZE, 1);
+        }
+    }
+
+    /**
+     * The original write path: a stream read into a 4 KB array, with the
+     * destination reopened for every write.
+     */
+    @Benchmark
+    public long reopenPerWrite(Destination d) throws IOException {
+        new FileOutputStream(d.mFile).close();
+        InputStream body = new ByteArrayInputStream(d.mBody);
+        byte[] data = new byte[Constants.BUFFER_SIZE];
+        long bytesSoFar = 0;
+        int bytesRead;
+        while ((bytesRead = body.read(data)) != -1) {
+            FileOutputStream stream = new FileOutputStream(d.mFile, true);
+            try {
+                stream.write(data, 0, bytesRead);
+            } finally {
+                stream.close();
+            }
+            bytesSoFar += bytesRead;
+        }
+        return bytesSoFar;
+    }
+
+    /**
+     * The current write path: a pooled direct buffer, the streaming checksum
+     * and a channel that stays open.
+     */
+    @Benchmark
+    public long channelCopy(Destination d, Chunk c) throws IOException {
+        return copy(d, c, false);
+    }
+
+    /**
+     * {@link #channelCopy} with the destination forced to storage every
+     * {@link Constants#MIN_CHECKPOINT_STEP} bytes, as progress checkpoints do.
+     */
+    @Benchmark
+    public long channelCopyCheckpointed(Destination d, Chunk c) throws IOException {
+        return copy(d, c, true);
+    }
+
+    /**
+     * The checksum alone, fed from a direct buffer like the transfer does.
+     */
+    @Benchmark
+    public long checksum(Destination d, Chunk c) {
+        ByteBuffer buffer = c.mPool.acquire();
+        try {
+            StreamingChecksum checksum = new StreamingChecksum(0, 0);
+            for (int offset = 0; offset < FILE_SIZE; offset += c.chunkSize) {
+                int length = Math.min(c.chunkSize, FILE_SIZE - offset);
+                buffer.clear();
+                buffer.put(d.mBody, offset, length);
+                buffer.flip();
+                checksum.update(buffer);
+            }
+            return checksum.getValue();
+        } finally {
+            c.mPool.release(buffer);
+        }
+    }
+
+    private static long copy(Destination d, Chunk c, boolean checkpoint) throws IOException {
+        ReadableByteChannel source = d.openBody();
+        FileChannel channel = d.mChannel;
+        channel.position(0);
+        StreamingChecksum checksum = new StreamingChecksum(0, 0);
+        ByteBuffer buffer = c.mPool.acquire();
+        long bytesSoFar = 0;
+        long bytesCheckpointed = 0;
+        try {
+            for (;;) {
+                buffer.clear();
+                buffer.limit(c.chunkSize);
+                int bytesRead = source.read(buffer);
+                if (bytesRead == -1) {
+                    return checksum.getValue();
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                bytesSoFar += bytesRead;
+                if (checkpoint
+                        && bytesSoFar - bytesCheckpointed > Constants.MIN_CHECKPOINT_STEP) {
+                    channel.force(false);
+                    checksum.checkpoint();
+                    bytesCheckpointed = bytesSoFar;
+                }
+            }
+        } finally {
+            c.mPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@link DownloadTransport} implementations fetching a file from a server
+ * on the loopback interface, whole and as consecutive byte ranges the way
+ * segment workers do. Request overhead and connection reuse dominate here;
+ * the copy loop itself is in {@link TransferBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {
+        "-Xms256m", "-Xmx256m"
+})
+@State(Scope.Thread)
+public class TransportBenchmark {
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final String PATH = "/main.obb";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Param({
+            "urlconnection", "apache"
+    })
+    public String transport;
+
+    private HttpServer mServer;
+    private DownloadTransport mTransport;
+    private String mUri;
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] file = new byte[FILE_SIZE];
+        new Random(0).nextBytes(file);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, file);
+            }
+        });
+        mServer.start();
+        mUri = "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+
+        if ("apache".equals(transport)) {
+            mTransport = new ApacheHttpTransport(AndroidHttpClient.newInstance(
+                    Constants.DEFAULT_USER_AGENT, null));
+        } else {
+            mTransport = new UrlConnectionTransport(Constants.DEFAULT_USER_AGENT, null);
+        }
+        mBuffer = ByteBuffer.allocateDirect(Constants.MAX_BUFFER_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTransport.close();
+        mServer.stop(0);
+    }
+
+    @Benchmark
+    public long wholeFile() throws IOException {
+        return fetch(null);
+    }
+
+    /**
+     * The file as {@link Constants#SEGMENT_COUNT} range requests, one after
+     * the other on the same transport.
+     */
+    @Benchmark
+    public long rangeRequests() throws IOException {
+        long bytes = 0;
+        for (DownloadSegment segment : DownloadSegment.split(FILE_SIZE, Constants.SEGMENT_COUNT)) {
+            bytes += fetch("bytes=" + segment.mStartByte + "-" + segment.mEndByte);
+        }
+        return bytes;
+    }
+
+    private long fetch(String range) throws IOException {
+        DownloadTransport.Request request = mTransport.newRequest(mUri);
+        try {
+            if (null != range) {
+                request.addHeader("Range", range);
+            }
+            DownloadTransport.Response response = request.execute(Proxy.NO_PROXY);
+            int statusCode = response.getStatusCode();
+            if (statusCode != HttpURLConnection.HTTP_OK
+                    && statusCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("unexpected status " + statusCode);
+            }
+            ReadableByteChannel body = response.getBody();
+            long bytes = 0;
+            int bytesRead;
+            do {
+                mBuffer.clear();
+                bytesRead = body.read(mBuffer);
+                bytes += Math.max(0, bytesRead);
+            } while (bytesRead != -1);
+            return bytes;
+        } finally {
+            request.abort();
+        }
+    }
+
+    private static void serve(HttpExchange exchange, byte[] file) throws IOException {
+        int start = 0;
+        int end = file.length - 1;
+        int statusCode = HttpURLConnection.HTTP_OK;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (null != range) {
+            Matcher m = RANGE_PATTERN.matcher(range);
+            if (m.matches()) {
+                start = Integer.parseInt(m.group(1));
+                end = Math.min(end, Integer.parseInt(m.group(2)));
+                statusCode = HttpURLConnection.HTTP_PARTIAL;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + file.length);
+            }
+        }
+        int length = end - start + 1;
+        exchange.sendResponseHeaders(statusCode, length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(file, start, length);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.licensing;
+
+import com.google.android.vending.licensing.util.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The signature check of one license response, as it was done before
+ * {@link SignatureVerifier} (decode the key and set up a Signature for every
+ * check) and with the cached verifier. The response is the size the
+ * licensing server sends, signed with a 2048-bit key like a developer key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {
+        "-Xms256m", "-Xmx256m"
+})
+@State(Scope.Thread)
+public class SignatureVerifierBenchmark {
+    private static final String SIGNED_DATA = "0|1234567890|com.example.app|42|"
+            + "ANlOHQOShF3uJUwv3Ql+fbsgEG9FD35Hag==|1500000000000:VT=1500086400000"
+            + "&GT=1500172800000&GR=10&FILE_URL1=https://example.com/main.obb"
+            + "&FILE_NAME1=main.42.com.example.app.obb&FILE_SIZE1=104857600";
+
+    private String mEncodedKey;
+    private byte[] mData;
+    private String mSignature;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        mEncodedKey = Base64.encode(keyPair.getPublic().getEncoded());
+        mData = SIGNED_DATA.getBytes();
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(mData);
+        mSignature = Base64.encode(signer.sign());
+    }
+
+    @Benchmark
+    public boolean uncached() throws Exception {
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        Signature sig = Signature.getInstance("SHA1withRSA");
+        sig.initVerify(keyFactory.generatePublic(
+                new X509EncodedKeySpec(Base64.decode(mEncodedKey))));
+        sig.update(mData);
+        return sig.verify(Base64.decode(mSignature));
+    }
+
+    @Benchmark
+    public boolean cached() throws Exception {
+        return SignatureVerifier.forKey(mEncodedKey).verify(mData, Base64.decode(mSignature));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Benchmark stub of android.database.sqlite.SQLiteDatabase: an always empty
+ * database that only counts the statements run against it, so that the
+ * benchmarks measure the code that prepares the writes.
+ */
+public final class SQLiteDatabase {
+    long mExecutions;
+    private long mNextRowId = 1;
+
+    SQLiteDatabase() {
+    }
+
+    /**
+     * Returns the number of statements executed so far.
+     */
+    public long getExecutionCount() {
+        return mExecutions;
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        return new SQLiteStatement(this);
+    }
+
+    public void execSQL(String sql) {
+        mExecutions++;
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        mExecutions++;
+        return null;
+    }
+
+    public Cursor query(String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy) {
+        mExecutions++;
+        return null;
+    }
+
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        mExecutions++;
+        return mNextRowId++;
+    }
+
+    public int update(String table, ContentValues values, String whereClause,
+            String[] whereArgs) {
+        mExecutions++;
+        return 0;
+    }
+
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        mExecutions++;
+        return 0;
+    }
+
+    public boolean enableWriteAheadLogging() {
+        return true;
+    }
+
+    public void beginTransaction() {
+    }
+
+    public void setTransactionSuccessful() {
+    }
+
+    public void endTransaction() {
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.database.sqlite;
+
+import android.content.Context;
+
+/**
+ * Benchmark stub of android.database.sqlite.SQLiteOpenHelper. The database is
+ * created empty on first use, as after a fresh install.
+ */
+public abstract class SQLiteOpenHelper {
+    private SQLiteDatabase mDatabase;
+
+    public SQLiteOpenHelper(Context context, String name, Object factory, int version) {
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (null == mDatabase) {
+            mDatabase = new SQLiteDatabase();
+            onCreate(mDatabase);
+        }
+        return mDatabase;
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public synchronized void close() {
+        mDatabase = null;
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+}
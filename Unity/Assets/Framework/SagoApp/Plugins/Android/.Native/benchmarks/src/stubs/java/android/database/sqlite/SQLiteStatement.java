@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.database.sqlite;
+
+/**
+ * Benchmark stub of android.database.sqlite.SQLiteStatement. Bindings are
+ * kept and every execution is counted, but nothing reaches a database; a
+ * query finds no rows.
+ */
+public final class SQLiteStatement {
+    private final long[] mBindings = new long[8];
+    private final SQLiteDatabase mDatabase;
+
+    SQLiteStatement(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    public void clearBindings() {
+        for (int i = 0; i < mBindings.length; i++) {
+            mBindings[i] = 0;
+        }
+    }
+
+    public void bindLong(int index, long value) {
+        mBindings[index - 1] = value;
+    }
+
+    public void execute() {
+        mDatabase.mExecutions++;
+    }
+
+    public long simpleQueryForLong() {
+        mDatabase.mExecutions++;
+        throw new SQLiteDoneException();
+    }
+
+    public void close() {
+    }
+}
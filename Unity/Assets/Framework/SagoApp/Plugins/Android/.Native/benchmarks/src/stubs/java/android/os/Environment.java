@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.os;
+
+import java.io.File;
+
+/**
+ * Benchmark stub of android.os.Environment. External storage is the JVM's
+ * temporary directory and is always mounted.
+ */
+public class Environment {
+    public static final String MEDIA_MOUNTED = "mounted";
+
+    private static final File TMP = new File(System.getProperty("java.io.tmpdir"));
+
+    public static File getExternalStorageDirectory() {
+        return TMP;
+    }
+
+    public static File getDownloadCacheDirectory() {
+        return TMP;
+    }
+
+    public static String getExternalStorageState() {
+        return MEDIA_MOUNTED;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.os;
+
+/**
+ * Benchmark stub of android.os.Parcel. Parceling is not benchmarked, so every
+ * call fails.
+ */
+public final class Parcel {
+    private Parcel() {
+    }
+
+    public void writeLong(long val) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void writeFloat(float val) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public long readLong() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public float readFloat() {
+        throw new RuntimeException("Stub!");
+    }
+}
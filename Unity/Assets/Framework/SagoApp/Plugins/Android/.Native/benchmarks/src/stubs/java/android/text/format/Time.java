@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.text.format;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Benchmark stub of android.text.format.Time covering the UTC conversion
+ * {@link com.google.android.vending.expansion.downloader.impl.HttpDateTime}
+ * needs. The device does the same arithmetic natively, so the cost of this
+ * class is not representative; the benchmark is about the parsing around it.
+ */
+public class Time {
+    public static final String TIMEZONE_UTC = "UTC";
+
+    private final Calendar mCalendar;
+
+    public Time(String timezone) {
+        mCalendar = new GregorianCalendar(TimeZone.getTimeZone(timezone));
+    }
+
+    public void set(int second, int minute, int hour, int monthDay, int month, int year) {
+        mCalendar.clear();
+        mCalendar.set(year, month, monthDay, hour, minute, second);
+    }
+
+    public long toMillis(boolean ignoreDst) {
+        return mCalendar.getTimeInMillis();
+    }
+}
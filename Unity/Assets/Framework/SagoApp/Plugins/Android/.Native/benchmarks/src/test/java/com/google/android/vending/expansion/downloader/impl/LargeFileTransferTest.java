@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.vending.expansion.downloader.Constants;
+import com.google.android.vending.expansion.downloader.Helpers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte accounting of transfers larger than 2 GB. The files are sparse, so
+ * the tests need no real disk space, and the stub server on the loopback
+ * interface serves only as much of them as the client reads.
+ */
+public class LargeFileTransferTest {
+    private static final long TOTAL_BYTES = 3L << 30;
+    private static final long PARTIAL_BYTES = 5L << 29;
+    private static final String PATH = "/main.obb";
+    private static final String ETAG = "\"main-3g\"";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-");
+    private static final byte[] MARKER = "resume here".getBytes(Charset.forName("UTF-8"));
+
+    private File mServedFile;
+    private File mPartialFile;
+    private HttpServer mServer;
+    private DownloadTransport mTransport;
+    private String mUri;
+
+    @Before
+    public void setUp() throws IOException {
+        // the whole file is sparse except for a marker where the resume
+        // should start
+        mServedFile = File.createTempFile("served", ".obb");
+        RandomAccessFile served = new RandomAccessFile(mServedFile, "rw");
+        try {
+            served.setLength(TOTAL_BYTES);
+            served.seek(PARTIAL_BYTES);
+            served.write(MARKER);
+        } finally {
+            served.close();
+        }
+        mPartialFile = File.createTempFile("partial", ".obb");
+        RandomAccessFile partial = new RandomAccessFile(mPartialFile, "rw");
+        try {
+            partial.setLength(PARTIAL_BYTES);
+        } finally {
+            partial.close();
+        }
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, mServedFile);
+            }
+        });
+        mServer.start();
+        mUri = "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+        mTransport = new UrlConnectionTransport(Constants.DEFAULT_USER_AGENT, null);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.close();
+        mServer.stop(0);
+        mServedFile.delete();
+        mPartialFile.delete();
+    }
+
+    @Test
+    public void countsBytesPastTwoGigabytes() {
+        TransferState state = new TransferState();
+        state.addBytes(Integer.MAX_VALUE);
+        state.addBytes(1);
+        assertEquals(1L << 31, state.mBytesSoFar);
+        assertEquals(1L << 31, state.mBytesThisSession);
+    }
+
+    @Test
+    public void parsesContentLengthAboveTwoGigabytes() throws IOException {
+        DownloadTransport.Request request = mTransport.newRequest(mUri);
+        try {
+            DownloadTransport.Response response = request.execute(Proxy.NO_PROXY);
+            assertEquals(HttpURLConnection.HTTP_OK, response.getStatusCode());
+
+            TransferState state = new TransferState();
+            state.mHeaderContentLength = response.getFirstHeader("Content-Length");
+            assertEquals(TOTAL_BYTES, state.getContentLength());
+
+            state.mBytesSoFar = TOTAL_BYTES - 1;
+            assertTrue(state.isLengthMismatched());
+            state.mBytesSoFar = TOTAL_BYTES;
+            assertFalse(state.isLengthMismatched());
+        } finally {
+            request.abort();
+        }
+    }
+
+    @Test
+    public void resumesAfterSparsePartialFile() throws IOException {
+        TransferState state = new TransferState();
+        state.resume(mPartialFile.length(), TOTAL_BYTES, ETAG);
+        assertEquals(PARTIAL_BYTES, state.mBytesSoFar);
+        assertEquals(0, state.mBytesThisSession);
+        assertEquals(TOTAL_BYTES, state.getContentLength());
+        assertEquals("bytes=" + PARTIAL_BYTES + "-", state.getRangeHeader());
+
+        DownloadTransport.Request request = mTransport.newRequest(mUri);
+        try {
+            request.addHeader("If-Match", ETAG);
+            request.addHeader("Range", state.getRangeHeader());
+            DownloadTransport.Response response = request.execute(Proxy.NO_PROXY);
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getStatusCode());
+            assertEquals("bytes " + PARTIAL_BYTES + "-" + (TOTAL_BYTES - 1) + "/" + TOTAL_BYTES,
+                    response.getFirstHeader("Content-Range"));
+            assertEquals(TOTAL_BYTES - PARTIAL_BYTES,
+                    Long.parseLong(response.getFirstHeader("Content-Length")));
+
+            ByteBuffer buffer = ByteBuffer.allocate(MARKER.length);
+            ReadableByteChannel body = response.getBody();
+            while (buffer.hasRemaining() && body.read(buffer) != -1) {
+            }
+            buffer.flip();
+            assertEquals(ByteBuffer.wrap(MARKER), buffer);
+        } finally {
+            request.abort();
+        }
+    }
+
+    @Test
+    public void reportsProgressFromSparsePartialFile() {
+        TransferState state = new TransferState();
+        state.resume(mPartialFile.length(), TOTAL_BYTES, ETAG);
+        assertEquals("83%", Helpers.getDownloadProgressPercent(state.mBytesSoFar, TOTAL_BYTES));
+
+        // the resumed data counts as checkpointed already
+        long now = Constants.MIN_CHECKPOINT_TIME + 1;
+        assertFalse(state.isCheckpointDue(now));
+        state.addBytes(Constants.MIN_CHECKPOINT_STEP + 1);
+        assertTrue(state.isCheckpointDue(now));
+        state.checkpointed(now);
+        assertEquals(PARTIAL_BYTES + Constants.MIN_CHECKPOINT_STEP + 1, state.mBytesCheckpointed);
+        assertFalse(state.isCheckpointDue(now));
+
+        assertTrue(state.isNotificationDue(Constants.MIN_PROGRESS_TIME + 1));
+        state.notified(Constants.MIN_PROGRESS_TIME + 1);
+        assertEquals(state.mBytesSoFar, state.mBytesNotified);
+        assertEquals(Constants.MIN_CHECKPOINT_STEP + 1, state.mBytesThisSession);
+
+        state.addBytes(TOTAL_BYTES - state.mBytesSoFar);
+        assertEquals("100%", Helpers.getDownloadProgressPercent(state.mBytesSoFar, TOTAL_BYTES));
+        assertFalse(state.isLengthMismatched());
+    }
+
+    /**
+     * Serves the file, or the rest of it from the start of an open-ended
+     * range, until the client stops reading.
+     */
+    private static void serve(HttpExchange exchange, File file) throws IOException {
+        long length = file.length();
+        long start = 0;
+        int statusCode = HttpURLConnection.HTTP_OK;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (null != range) {
+            Matcher m = RANGE_PATTERN.matcher(range);
+            if (m.matches()) {
+                start = Long.parseLong(m.group(1));
+                statusCode = HttpURLConnection.HTTP_PARTIAL;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (length - 1) + "/" + length);
+            }
+        }
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        exchange.sendResponseHeaders(statusCode, length - start);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        OutputStream out = exchange.getResponseBody();
+        try {
+            in.seek(start);
+            byte[] data = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(data)) != -1) {
+                out.write(data, 0, bytesRead);
+            }
+        } catch (IOException ex) {
+            // the client has read what it needed and hung up
+        } finally {
+            in.close();
+            exchange.close();
+        }
+    }
+}
@@ -54,23 +54,71 @@ public class Constants {
     /** The default user agent used for downloads */
     public static final String DEFAULT_USER_AGENT = "Android.LVLDM";
 
-    /** The buffer size used to stream the data */
+    /** The smallest buffer size used to stream the data */
     public static final int BUFFER_SIZE = 4096;
 
+    /** The largest buffer size used to stream the data on a fast connection */
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /** The amount of time a read of one buffer should take, in ms */
+    public static final long BUFFER_TARGET_TIME = 50;
+
+    /** The amount of time over which throughput is measured before resizing the buffer, in ms */
+    public static final long BUFFER_SAMPLE_TIME = 500;
+
+    /**
+     * Enable writing a single-stream download to disk on its own thread, so
+     * that reads from the network continue while the file is written
+     */
+    public static final boolean PIPELINED_WRITES = true;
+
+    /** The number of buffers in flight between the network reader and the disk writer */
+    public static final int PIPELINE_BUFFERS = 4;
+
+    /** The size of the buffer between the socket and the stream, in bytes */
+    public static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Send requests through HttpURLConnection rather than the Apache HTTP
+     * client, which remains as a fallback
+     */
+    public static final boolean URL_CONNECTION_TRANSPORT = true;
+
+    /** The connection and read timeout of the HTTP transports, in ms */
+    public static final int SOCKET_TIMEOUT = 60 * 1000;
+
+    /** The longest time a pooled connection is kept open without being used, in ms */
+    public static final long MAX_CONNECTION_IDLE_TIME = 30 * 1000;
+
+    /** A read from the network that blocks for at least this long, in ms, counts as a stall */
+    public static final long STALL_THRESHOLD = 2000;
+
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 4096;
 
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 1000;
 
-    /** The maximum number of rows in the database (FIFO) */
-    public static final int MAX_DOWNLOADS = 1000;
+    /** The minimum amount of time between two posts of the progress notification, in ms */
+    public static final long MIN_NOTIFICATION_TIME = 1000;
+
+    /**
+     * The minimum amount of data that has to be written before the file is
+     * synced and the download progress is checkpointed in the database
+     */
+    public static final int MIN_CHECKPOINT_STEP = 1024 * 1024;
+
+    /** The minimum amount of time between two progress checkpoints, in ms */
+    public static final long MIN_CHECKPOINT_TIME = 3000;
 
     /**
-     * The number of times that the download manager will retry its network
-     * operations when no progress is happening before it gives up.
+     * The longest time that checkpointed progress waits in the progress
+     * journal before it is written to the database, in ms
      */
-    public static final int MAX_RETRIES = 5;
+    public static final long PROGRESS_FLUSH_INTERVAL = 2000;
+
+    /** The maximum number of rows in the database (FIFO) */
+    public static final int MAX_DOWNLOADS = 1000;
 
     /**
      * The minimum amount of time that the download manager accepts for
@@ -90,11 +138,65 @@ public class Constants {
     public static final int MAX_REDIRECTS = 5; // can't be more than 7.
 
     /**
-     * The time between a failure and the first retry after an IOException.
-     * Each subsequent retry grows exponentially, doubling each time.
-     * The time is in seconds.
+     * The shortest time between a failure and the next retry, in ms. Each
+     * retry waits a random time between this and three times the previous
+     * wait.
+     */
+    public static final long RETRY_BASE_DELAY = 2 * 1000;
+
+    /** The longest time between a failure and the next retry, in ms */
+    public static final long RETRY_MAX_DELAY = 10 * 60 * 1000;
+
+    /**
+     * The number of connection failures while the network is up, without
+     * progress in between, after which a download gives up
+     */
+    public static final int MAX_NETWORK_RETRIES = 10;
+
+    /**
+     * The number of temporary server errors (such as 503), without progress
+     * in between, after which a download gives up
+     */
+    public static final int MAX_SERVER_RETRIES = 8;
+
+    /** Enable downloading large files as several parallel byte ranges */
+    public static final boolean SEGMENTED_DOWNLOADS = true;
+
+    /** The smallest file that is downloaded in segments */
+    public static final long MIN_SEGMENTED_DOWNLOAD_SIZE = 16 * 1024 * 1024;
+
+    /** The number of byte ranges a segmented download is split into */
+    public static final int SEGMENT_COUNT = 8;
+
+    /**
+     * The maximum number of connections a segmented download keeps open at
+     * once. Segments beyond this wait for a free worker.
+     */
+    public static final int MAX_SEGMENT_CONNECTIONS = 4;
+
+    /**
+     * The maximum number of files (main and patch) that are downloaded at
+     * the same time
+     */
+    public static final int MAX_CONCURRENT_DOWNLOADS = 2;
+
+    /**
+     * The maximum number of connections all downloads together keep open.
+     * It is split evenly between the downloads that run at the same time.
+     */
+    public static final int MAX_DOWNLOAD_CONNECTIONS = 4;
+
+    /**
+     * The default limit for the combined bandwidth of all downloads, in
+     * bytes per second. Zero means unlimited.
+     */
+    public static final long MAX_DOWNLOAD_BANDWIDTH = 0;
+
+    /**
+     * The limit for the combined bandwidth of all downloads while they run
+     * in the background of the application, in bytes per second
      */
-    public static final int RETRY_FIRST_DELAY = 30;
+    public static final long BACKGROUND_DOWNLOAD_BANDWIDTH = 256 * 1024;
 
     /** Enable separate connectivity logging */
     public static final boolean LOGX = true;
@@ -63,7 +63,10 @@ public class DownloaderClientMarshaller {
     public static final int MSG_ONSERVICECONNECTED = 12;
 
     public static final String PARAM_NEW_STATE = "newState";
-    public static final String PARAM_PROGRESS = "progress";
+    public static final String PARAM_OVERALL_TOTAL = "overallTotal";
+    public static final String PARAM_OVERALL_PROGRESS = "overallProgress";
+    public static final String PARAM_TIME_REMAINING = "timeRemaining";
+    public static final String PARAM_CURRENT_SPEED = "currentSpeed";
     public static final String PARAM_MESSENGER = DownloaderService.EXTRA_MESSAGE_HANDLER;
 
     public static final int NO_DOWNLOAD_REQUIRED = DownloaderService.NO_DOWNLOAD_REQUIRED;
@@ -72,6 +75,12 @@ public class DownloaderClientMarshaller {
 
     private static class Proxy implements IDownloaderClient {
         private Messenger mServiceMessenger;
+        /**
+         * Progress is sent as primitives in a Bundle that is reused for every
+         * update. That is safe because the service sends the next update only
+         * after the client has asked for it, and so has read this one.
+         */
+        private final Bundle mProgressParams = new Bundle(4);
 
         @Override
         public void onDownloadStateChanged(int newState) {
@@ -82,9 +91,11 @@ public class DownloaderClientMarshaller {
 
         @Override
         public void onDownloadProgress(DownloadProgressInfo progress) {
-            Bundle params = new Bundle(1);
-            params.putParcelable(PARAM_PROGRESS, progress);
-            send(MSG_ONDOWNLOADPROGRESS, params);
+            mProgressParams.putLong(PARAM_OVERALL_TOTAL, progress.mOverallTotal);
+            mProgressParams.putLong(PARAM_OVERALL_PROGRESS, progress.mOverallProgress);
+            mProgressParams.putLong(PARAM_TIME_REMAINING, progress.mTimeRemaining);
+            mProgressParams.putFloat(PARAM_CURRENT_SPEED, progress.mCurrentSpeed);
+            send(MSG_ONDOWNLOADPROGRESS, mProgressParams);
         }
 
         private void send(int method, Bundle params) {
@@ -114,7 +125,13 @@ public class DownloaderClientMarshaller {
         private Class<?> mDownloaderServiceClass;
         private boolean mBound;
         private Messenger mServiceMessenger;
+        private IDownloaderService mServiceProxy;
         private Context mContext;
+        /**
+         * Reused for every progress update; clients should copy out the
+         * values they want to keep.
+         */
+        private final DownloadProgressInfo mProgress = new DownloadProgressInfo(0, 0, -1, 0);
         /**
          * Target we publish for clients to send messages to IncomingHandler.
          */
@@ -122,13 +139,20 @@ public class DownloaderClientMarshaller {
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
-                    case MSG_ONDOWNLOADPROGRESS:                        
-                        Bundle bun = msg.getData();
+                    case MSG_ONDOWNLOADPROGRESS:
                         if ( null != mContext ) {
-                            bun.setClassLoader(mContext.getClassLoader());
-                            DownloadProgressInfo dpi = (DownloadProgressInfo) msg.getData()
-                                    .getParcelable(PARAM_PROGRESS);
-                            mItf.onDownloadProgress(dpi);
+                            Bundle bun = msg.getData();
+                            mProgress.mOverallTotal = bun.getLong(PARAM_OVERALL_TOTAL);
+                            mProgress.mOverallProgress = bun.getLong(PARAM_OVERALL_PROGRESS);
+                            mProgress.mTimeRemaining = bun.getLong(PARAM_TIME_REMAINING);
+                            mProgress.mCurrentSpeed = bun.getFloat(PARAM_CURRENT_SPEED);
+                            mItf.onDownloadProgress(mProgress);
+                            // ask for the next update only once this one has
+                            // been handled, so updates follow the pace of the
+                            // client's main thread
+                            if ( null != mServiceProxy ) {
+                                mServiceProxy.requestProgressUpdate();
+                            }
                         }
                         break;
                     case MSG_ONDOWNLOADSTATE_CHANGED:
@@ -158,6 +182,7 @@ public class DownloaderClientMarshaller {
                 // service using a Messenger, so here we get a client-side
                 // representation of that from the raw IBinder object.
                 mServiceMessenger = new Messenger(service);
+                mServiceProxy = DownloaderServiceMarshaller.CreateProxy(mServiceMessenger);
                 mItf.onServiceConnected(
                         mServiceMessenger);
             }
@@ -166,6 +191,7 @@ public class DownloaderClientMarshaller {
                 // This is called when the connection with the service has been
                 // unexpectedly disconnected -- that is, its process crashed.
                 mServiceMessenger = null;
+                mServiceProxy = null;
             }
         };
 
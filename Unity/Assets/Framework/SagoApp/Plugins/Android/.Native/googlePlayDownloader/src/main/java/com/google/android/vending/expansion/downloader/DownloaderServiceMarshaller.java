@@ -50,8 +50,13 @@ public class DownloaderServiceMarshaller {
             5;
     public static final int MSG_REQUEST_CLIENT_UPDATE =
             6;
+    public static final int MSG_SET_DOWNLOAD_PRIORITY =
+            7;
+    public static final int MSG_REQUEST_PROGRESS_UPDATE =
+            8;
 
     public static final String PARAMS_FLAGS = "flags";
+    public static final String PARAMS_PRIORITY = "priority";
     public static final String PARAM_MESSENGER = DownloaderService.EXTRA_MESSAGE_HANDLER;
 
     private static class Proxy implements IDownloaderService {
@@ -88,6 +93,13 @@ public class DownloaderServiceMarshaller {
             send(MSG_SET_DOWNLOAD_FLAGS, params);
         }
 
+        @Override
+        public void setDownloadPriority(int priority) {
+            Bundle params = new Bundle();
+            params.putInt(PARAMS_PRIORITY, priority);
+            send(MSG_SET_DOWNLOAD_PRIORITY, params);
+        }
+
         @Override
         public void requestContinueDownload() {
             send(MSG_REQUEST_CONTINUE_DOWNLOAD, new Bundle());
@@ -104,6 +116,12 @@ public class DownloaderServiceMarshaller {
             bundle.putParcelable(PARAM_MESSENGER, clientMessenger);
             send(MSG_REQUEST_CLIENT_UPDATE, bundle);
         }
+
+        @Override
+        public void requestProgressUpdate() {
+            // sent once per progress update, so it carries no data
+            send(MSG_REQUEST_PROGRESS_UPDATE, null);
+        }
     }
 
     private static class Stub implements IStub {
@@ -124,6 +142,9 @@ public class DownloaderServiceMarshaller {
                     case MSG_SET_DOWNLOAD_FLAGS:
                         mItf.setDownloadFlags(msg.getData().getInt(PARAMS_FLAGS));
                         break;
+                    case MSG_SET_DOWNLOAD_PRIORITY:
+                        mItf.setDownloadPriority(msg.getData().getInt(PARAMS_PRIORITY));
+                        break;
                     case MSG_REQUEST_DOWNLOAD_STATE:
                         mItf.requestDownloadStatus();
                         break;
@@ -131,6 +152,9 @@ public class DownloaderServiceMarshaller {
                         mItf.onClientUpdated((Messenger) msg.getData().getParcelable(
                                 PARAM_MESSENGER));
                         break;
+                    case MSG_REQUEST_PROGRESS_UPDATE:
+                        mItf.requestProgressUpdate();
+                        break;
                 }
             }
         });
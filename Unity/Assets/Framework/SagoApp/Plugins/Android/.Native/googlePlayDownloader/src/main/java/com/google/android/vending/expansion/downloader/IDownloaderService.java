@@ -38,6 +38,17 @@ public interface IDownloaderService {
      */
     public static final int FLAGS_DOWNLOAD_OVER_CELLULAR = 1;
 
+    /**
+     * Download at full speed, for when the download UI is in front.
+     */
+    public static final int PRIORITY_FOREGROUND = 0;
+
+    /**
+     * Download at a limited rate, leaving the bandwidth to the application,
+     * for example while the game is running.
+     */
+    public static final int PRIORITY_BACKGROUND = 1;
+
     /**
      * Request that the service abort the current download. The service should
      * respond by changing the state to {@link IDownloaderClient.STATE_ABORTED}.
@@ -66,6 +77,15 @@ public interface IDownloaderService {
      */
     void setDownloadFlags(int flags);
 
+    /**
+     * Set how much of the bandwidth the download may take (e.g.
+     * {@link #PRIORITY_BACKGROUND}). The priority stays in effect until it is
+     * set again, also across restarts of the service.
+     * 
+     * @param priority
+     */
+    void setDownloadPriority(int priority);
+
     /**
      * Requests that the download status be sent to the client.
      */
@@ -80,4 +100,13 @@ public interface IDownloaderService {
      * @param clientMessenger
      */
     void onClientUpdated(Messenger clientMessenger);
+
+    /**
+     * Tells the service that the client has shown the last progress update
+     * and is ready for the next one. The service keeps at most one progress
+     * update in flight and coalesces everything in between into the latest
+     * value, so progress arrives only as fast as the client consumes it. The
+     * client stub calls this itself after delivering each update.
+     */
+    void requestProgressUpdate();
 }
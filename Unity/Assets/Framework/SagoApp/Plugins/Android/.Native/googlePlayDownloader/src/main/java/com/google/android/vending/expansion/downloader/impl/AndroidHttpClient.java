@@ -28,6 +28,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -46,6 +47,8 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -64,6 +67,8 @@ import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
 import org.apache.http.protocol.HttpContext;
 
+import com.google.android.vending.expansion.downloader.Constants;
+
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.SSLCertificateSocketFactory;
@@ -121,15 +126,37 @@ public final class AndroidHttpClient implements HttpClient {
      * @return AndroidHttpClient for you to use for all your requests.
      */
     public static AndroidHttpClient newInstance(String userAgent, Context context) {
+        return newInstance(userAgent, context, Constants.MAX_SEGMENT_CONNECTIONS);
+    }
+
+    /**
+     * Create a new HttpClient whose connections are kept alive and shared by
+     * the threads that use it.
+     *
+     * @param userAgent to report in your HTTP requests
+     * @param context to use for caching SSL sessions (may be null for no caching)
+     * @param maxConnectionsPerRoute the number of connections kept open to
+     *            one host at most
+     * @return AndroidHttpClient for you to use for all your requests.
+     */
+    public static AndroidHttpClient newInstance(String userAgent, Context context,
+            int maxConnectionsPerRoute) {
         HttpParams params = new BasicHttpParams();
 
-        // Turn off stale checking.  Our connections break all the time anyway,
-        // and it's not worth it to pay the penalty of checking every time.
-        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        // Connections are pooled and may sit idle between requests, long
+        // enough for the server or a NAT to drop them. Checking costs far
+        // less than failing a request on a dead connection.
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
 
         HttpConnectionParams.setConnectionTimeout(params, SOCKET_OPERATION_TIMEOUT);
         HttpConnectionParams.setSoTimeout(params, SOCKET_OPERATION_TIMEOUT);
-        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpConnectionParams.setSocketBufferSize(params, Constants.SOCKET_BUFFER_SIZE);
+
+        // Segmented downloads open several connections to the same host,
+        // and a redirect may move them to a second one.
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(maxConnectionsPerRoute));
+        ConnManagerParams.setMaxTotalConnections(params, 2 * maxConnectionsPerRoute);
 
         // Don't handle redirects -- return them to the caller.  Our code
         // often wants to re-POST after a redirect, which we must do ourselves.
@@ -301,6 +328,18 @@ public final class AndroidHttpClient implements HttpClient {
         }
     }
 
+    /**
+     * Closes the pooled connections that have expired or have not been
+     * used for the given time.
+     *
+     * @param idleTime the time a connection may be idle, in ms
+     */
+    public void closeIdleConnections(long idleTime) {
+        ClientConnectionManager manager = getConnectionManager();
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+    }
+
     public HttpParams getParams() {
         return delegate.getParams();
     }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnRouteParams;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A {@link DownloadTransport} on top of the Apache HTTP client, through a
+ * pooled {@link AndroidHttpClient}.
+ */
+public class ApacheHttpTransport implements DownloadTransport {
+    private final AndroidHttpClient mClient;
+
+    public ApacheHttpTransport(AndroidHttpClient client) {
+        mClient = client;
+    }
+
+    private class ApacheRequest implements Request {
+        private final String mUri;
+        private final HttpGet mRequest = new HttpGet();
+
+        ApacheRequest(String uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            mRequest.addHeader(name, value);
+        }
+
+        @Override
+        public Response execute(Proxy proxy) throws IOException {
+            mRequest.setURI(URI.create(mUri));
+            // the proxy goes on the request, as the client is shared with
+            // other downloads. setDefaultProxy() supports null as proxy.
+            HttpHost proxyHost = null;
+            if (proxy.type() == Proxy.Type.HTTP) {
+                InetSocketAddress address = (InetSocketAddress) proxy.address();
+                proxyHost = new HttpHost(address.getHostName(), address.getPort(), "http");
+            }
+            ConnRouteParams.setDefaultProxy(mRequest.getParams(), proxyHost);
+            return new ApacheResponse(mClient.execute(mRequest));
+        }
+
+        @Override
+        public void abort() {
+            mRequest.abort();
+        }
+    }
+
+    private static class ApacheResponse implements Response {
+        private final HttpResponse mResponse;
+
+        ApacheResponse(HttpResponse response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getFirstHeader(String name) {
+            Header header = mResponse.getFirstHeader(name);
+            return null == header ? null : header.getValue();
+        }
+
+        @Override
+        public ReadableByteChannel getBody() throws IOException {
+            HttpEntity entity = mResponse.getEntity();
+            if (null == entity) {
+                throw new IOException("response has no body");
+            }
+            return Channels.newChannel(entity.getContent());
+        }
+    }
+
+    @Override
+    public Request newRequest(String uri) {
+        return new ApacheRequest(uri);
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime) {
+        mClient.closeIdleConnections(idleTime);
+    }
+
+    @Override
+    public void close() {
+        mClient.close();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+/**
+ * A token bucket shared by every transfer of the service, limiting the
+ * combined rate at which data is read from the network. Transfers that take
+ * more than is available sleep off the debt, so the budget is shared between
+ * them in proportion to how much they read.
+ */
+public class BandwidthLimiter {
+    private long mBytesPerSecond;
+    private double mAvailable;
+    private long mLastRefill;
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets the combined rate limit, in bytes per second. Zero or less removes
+     * the limit. Transfers that are waiting for the old limit are woken up,
+     * so a raised limit takes effect at once.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        mAvailable = Math.min(mAvailable, bytesPerSecond);
+        mLastRefill = System.nanoTime();
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Account for bytes that were just read, and wait until the rate limit
+     * allows them.
+     */
+    public synchronized void acquire(int bytes) {
+        if (mBytesPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        // allow a burst of up to one second of data
+        mAvailable = Math.min(mBytesPerSecond,
+                mAvailable + (now - mLastRefill) * mBytesPerSecond / 1e9);
+        mLastRefill = now;
+        mAvailable -= bytes;
+        if (mAvailable >= 0) {
+            return;
+        }
+        long waitMillis = (long) (-mAvailable * 1000 / mBytesPerSecond);
+        try {
+            // releases the lock while waiting, like a sleep outside of it,
+            // but returns early when the rate changes
+            wait(Math.max(1, waitMillis));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
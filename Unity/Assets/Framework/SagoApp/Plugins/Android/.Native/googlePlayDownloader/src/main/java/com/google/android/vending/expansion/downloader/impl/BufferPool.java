@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A pool of direct byte buffers shared by the download threads. Buffers are
+ * allocated once at the largest transfer size and handed out again after
+ * they are released, so a running transfer does not allocate.
+ */
+public class BufferPool {
+    private static BufferPool sInstance;
+
+    private final ArrayList<ByteBuffer> mFree = new ArrayList<ByteBuffer>();
+    private final int mBufferSize;
+    private final int mMaxPooled;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    public static synchronized BufferPool getInstance() {
+        if (null == sInstance) {
+            // one buffer for every connection plus a pipeline ring per download
+            sInstance = new BufferPool(Constants.MAX_BUFFER_SIZE,
+                    Constants.MAX_DOWNLOAD_CONNECTIONS
+                            + Constants.MAX_CONCURRENT_DOWNLOADS * Constants.PIPELINE_BUFFERS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a cleared buffer, reusing a released one when possible.
+     */
+    public synchronized ByteBuffer acquire() {
+        int size = mFree.size();
+        if (size > 0) {
+            return mFree.remove(size - 1);
+        }
+        return ByteBuffer.allocateDirect(mBufferSize);
+    }
+
+    /**
+     * Hands a buffer back to the pool. Buffers beyond the pool size are left
+     * to the garbage collector.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (null == buffer || buffer.capacity() != mBufferSize
+                || mFree.size() >= mMaxPooled) {
+            return;
+        }
+        buffer.clear();
+        mFree.add(buffer);
+    }
+}
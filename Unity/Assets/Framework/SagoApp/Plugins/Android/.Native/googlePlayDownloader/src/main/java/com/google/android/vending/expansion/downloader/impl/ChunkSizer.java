@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+/**
+ * Picks the number of bytes a transfer reads and writes at a time from the
+ * throughput measured so far. Slow links keep small chunks so progress and
+ * pause requests stay responsive; fast links grow up to
+ * {@link Constants#MAX_BUFFER_SIZE} to cut the per-chunk overhead.
+ */
+public class ChunkSizer {
+    private int mChunkSize = Constants.BUFFER_SIZE;
+    private long mSampleStart;
+    private long mSampleBytes;
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Account for a transferred chunk and resize at the end of each sample.
+     *
+     * @param bytes the number of bytes transferred
+     * @param now the current time, in ms
+     */
+    public void onTransferred(int bytes, long now) {
+        if (0 == mSampleStart) {
+            mSampleStart = now;
+        }
+        mSampleBytes += bytes;
+        long elapsed = now - mSampleStart;
+        if (elapsed < Constants.BUFFER_SAMPLE_TIME) {
+            return;
+        }
+        long bytesPerChunk = mSampleBytes * Constants.BUFFER_TARGET_TIME / elapsed;
+        int size = Constants.BUFFER_SIZE;
+        while (size < bytesPerChunk && size < Constants.MAX_BUFFER_SIZE) {
+            size <<= 1;
+        }
+        mChunkSize = size;
+        mSampleStart = now;
+        mSampleBytes = 0;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a block-level delta and produces the file it describes, one buffer at
+ * a time. A delta rebuilds a new version of an expansion file from the
+ * version it replaces (the base) by copying ranges of the base and inserting
+ * new data. Memory use does not depend on the size of either file.
+ * <p>
+ * All numbers are big-endian. The delta starts with a header:
+ *
+ * <pre>
+ * int  magic, 'OBBD'
+ * int  format version, 1
+ * long length of the base file
+ * long length of the target file
+ * long CRC32 of the target file
+ * </pre>
+ *
+ * followed by operations, each introduced by one byte:
+ *
+ * <pre>
+ * 0 END   the target is complete
+ * 1 COPY  long offset, long length: copy a range of the base file
+ * 2 DATA  long length, then that many bytes of new data
+ * </pre>
+ *
+ * The target is only reported complete after its length and CRC32 have been
+ * checked against the header.
+ */
+public class DeltaPatch {
+    public static final int MAGIC = 0x4F424244;
+    public static final int VERSION = 1;
+
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_DATA = 2;
+
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Thrown when the delta is malformed or does not apply to the base file.
+     * Downloading it again does not help.
+     */
+    public static class PatchException extends IOException {
+        private static final long serialVersionUID = -2715368046281531924L;
+
+        public PatchException(String message) {
+            super(message);
+        }
+    }
+
+    private final ReadableByteChannel mSource;
+    private final FileChannel mBase;
+    private final ByteBuffer mScratch = ByteBuffer.allocate(HEADER_SIZE);
+    private final StreamingChecksum mChecksum = new StreamingChecksum(0, 0);
+    private long mBaseLength;
+    private long mTargetLength = -1;
+    private long mTargetCrc32;
+    private int mOp = -1;
+    private long mOpOffset;
+    private long mOpRemaining;
+    private long mBytesRead;
+    private long mBytesWritten;
+
+    /**
+     * @param source the delta
+     * @param base the file the delta applies to
+     */
+    public DeltaPatch(ReadableByteChannel source, FileChannel base) {
+        mSource = source;
+        mBase = base;
+    }
+
+    /**
+     * Reads the header and checks that the delta applies to the base file.
+     */
+    public void readHeader() throws IOException {
+        readScratch(HEADER_SIZE);
+        if (mScratch.getInt() != MAGIC) {
+            throw new PatchException("not a delta");
+        }
+        int version = mScratch.getInt();
+        if (version != VERSION) {
+            throw new PatchException("unsupported delta version " + version);
+        }
+        mBaseLength = mScratch.getLong();
+        if (mBaseLength != mBase.size()) {
+            throw new PatchException("delta is for a different base file");
+        }
+        mTargetLength = mScratch.getLong();
+        mTargetCrc32 = mScratch.getLong();
+        if (mTargetLength < 0) {
+            throw new PatchException("invalid target length");
+        }
+    }
+
+    public long getTargetLength() {
+        return mTargetLength;
+    }
+
+    public long getTargetCrc32() {
+        return mTargetCrc32;
+    }
+
+    /**
+     * Returns the number of bytes of the delta read so far.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Returns the number of bytes of the target produced so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Fills the buffer with the next part of the target and flips it, ready to
+     * be written out.
+     *
+     * @return false once the target is complete and has been verified; the
+     *         buffer is empty then
+     */
+    public boolean read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (0 == mOpRemaining) {
+            if (!nextOp()) {
+                buffer.flip();
+                return false;
+            }
+        }
+        int length = (int) Math.min(mOpRemaining, buffer.capacity());
+        buffer.limit(length);
+        if (mOp == OP_COPY) {
+            while (buffer.hasRemaining()) {
+                if (mBase.read(buffer, mOpOffset + buffer.position()) < 0) {
+                    throw new PatchException("base file ended early");
+                }
+            }
+        } else {
+            readFully(buffer);
+        }
+        buffer.flip();
+        mChecksum.update(buffer);
+        mOpOffset += length;
+        mOpRemaining -= length;
+        mBytesWritten += length;
+        return true;
+    }
+
+    /**
+     * Reads the next operation.
+     *
+     * @return false at the end of the delta
+     */
+    private boolean nextOp() throws IOException {
+        readScratch(1);
+        mOp = mScratch.get();
+        switch (mOp) {
+            case OP_END:
+                if (mBytesWritten != mTargetLength) {
+                    throw new PatchException("delta produced " + mBytesWritten
+                            + " bytes instead of " + mTargetLength);
+                }
+                if (mChecksum.getValue() != mTargetCrc32) {
+                    throw new PatchException("checksum mismatch after applying delta");
+                }
+                return false;
+            case OP_COPY:
+                readScratch(16);
+                mOpOffset = mScratch.getLong();
+                mOpRemaining = mScratch.getLong();
+                if (mOpOffset < 0 || mOpRemaining < 0
+                        || mOpOffset > mBaseLength - mOpRemaining) {
+                    throw new PatchException("copy outside of the base file");
+                }
+                break;
+            case OP_DATA:
+                readScratch(8);
+                mOpOffset = 0;
+                mOpRemaining = mScratch.getLong();
+                if (mOpRemaining < 0) {
+                    throw new PatchException("invalid data length");
+                }
+                break;
+            default:
+                throw new PatchException("unknown delta operation " + mOp);
+        }
+        if (mOpRemaining > mTargetLength - mBytesWritten) {
+            throw new PatchException("delta produces more than the target length");
+        }
+        return true;
+    }
+
+    private void readScratch(int length) throws IOException {
+        mScratch.clear();
+        mScratch.limit(length);
+        readFully(mScratch);
+        mScratch.flip();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = mSource.read(buffer);
+            if (bytesRead < 0) {
+                throw new EOFException("delta ended early");
+            }
+            mBytesRead += bytesRead;
+        }
+    }
+}
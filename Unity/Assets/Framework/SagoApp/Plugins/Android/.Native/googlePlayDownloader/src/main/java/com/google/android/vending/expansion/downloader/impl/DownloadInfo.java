@@ -17,7 +17,6 @@
 package com.google.android.vending.expansion.downloader.impl;
 
 import com.google.android.vending.expansion.downloader.Constants;
-import com.google.android.vending.expansion.downloader.Helpers;
 
 import android.util.Log;
 
@@ -34,16 +33,19 @@ public class DownloadInfo {
     public long mLastMod;
     public int mStatus;
     public int mControl;
-    public int mNumFailed;
-    public int mRetryAfter;
+    public int mNumFailed; // consecutive failures of any class
+    public int mNumServerFailed; // how many of them were server errors
+    public int mRetryClass; // class of the last failure
+    public int mRetryAfter; // ms from mLastMod to the next retry
     public int mRedirectCount;
+    public long mCrc32 = StreamingChecksum.UNKNOWN;
+    public long mFileMTime;
+    public String mDeltaBase; // file a delta from mDeltaUri applies to
+    public String mDeltaUri;
 
     boolean mInitialized;
 
-    public int mFuzz;
-
     public DownloadInfo(int index, String fileName, String pkg) {
-        mFuzz = Helpers.sRandom.nextInt(1001);
         mFileName = fileName;
         mIndex = index;
     }
@@ -55,8 +57,14 @@ public class DownloadInfo {
         mStatus = 0;
         mControl = 0;
         mNumFailed = 0;
+        mNumServerFailed = 0;
+        mRetryClass = RetryPolicy.CLASS_NONE;
         mRetryAfter = 0;
         mRedirectCount = 0;
+        mCrc32 = StreamingChecksum.UNKNOWN;
+        mFileMTime = 0;
+        mDeltaBase = null;
+        mDeltaUri = null;
     }
 
     /**
@@ -66,12 +74,7 @@ public class DownloadInfo {
         if (mNumFailed == 0) {
             return now;
         }
-        if (mRetryAfter > 0) {
-            return mLastMod + mRetryAfter;
-        }
-        return mLastMod +
-                Constants.RETRY_FIRST_DELAY *
-                (1000 + mFuzz) * (1 << (mNumFailed - 1));
+        return mLastMod + mRetryAfter;
     }
 
     public void logVerboseInfo() {
@@ -82,11 +85,15 @@ public class DownloadInfo {
         Log.v(Constants.TAG, "CONTROL : " + mControl);
         Log.v(Constants.TAG, "STATUS  : " + mStatus);
         Log.v(Constants.TAG, "FAILED_C: " + mNumFailed);
+        Log.v(Constants.TAG, "FAILED_S: " + mNumServerFailed);
+        Log.v(Constants.TAG, "RETRY_CL: " + mRetryClass);
         Log.v(Constants.TAG, "RETRY_AF: " + mRetryAfter);
         Log.v(Constants.TAG, "REDIRECT: " + mRedirectCount);
         Log.v(Constants.TAG, "LAST_MOD: " + mLastMod);
         Log.v(Constants.TAG, "TOTAL   : " + mTotalBytes);
         Log.v(Constants.TAG, "CURRENT : " + mCurrentBytes);
         Log.v(Constants.TAG, "ETAG    : " + mETag);
+        Log.v(Constants.TAG, "CRC32   : " + mCrc32);
+        Log.v(Constants.TAG, "DELTA   : " + mDeltaBase);
     }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+import android.os.SystemClock;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects telemetry about the downloads of this process: time to first
+ * byte, throughput, stalls, the outcome of every download attempt and the
+ * bytes thrown away when a download had to start over. Throughput covers the
+ * current download session (one run of {@link DownloaderService} through its
+ * downloads); everything else accumulates for the life of the process.
+ * <p>
+ * The game reads it all at once with {@link #getSnapshot()}, e.g. from
+ * Unity:
+ *
+ * <pre>
+ * long[] metrics = new AndroidJavaClass(
+ *         "com.google.android.vending.expansion.downloader.impl.DownloadMetrics")
+ *         .CallStatic&lt;long[]&gt;("getSnapshot");
+ * </pre>
+ *
+ * The snapshot is laid out as described by the SNAPSHOT_ constants, followed
+ * by one (status, count) pair per download attempt outcome.
+ */
+public class DownloadMetrics {
+    /** The layout version of the snapshot, currently 1 */
+    public static final int SNAPSHOT_VERSION = 0;
+    /** The number of download sessions started */
+    public static final int SNAPSHOT_SESSIONS = 1;
+    /** The length of the current (or last) session so far, in ms */
+    public static final int SNAPSHOT_SESSION_TIME = 2;
+    /** The bytes received in the current (or last) session */
+    public static final int SNAPSHOT_SESSION_BYTES = 3;
+    /** The number of requests that got data, and their time to first byte in ms */
+    public static final int SNAPSHOT_TTFB_COUNT = 4;
+    public static final int SNAPSHOT_TTFB_P50 = 5;
+    public static final int SNAPSHOT_TTFB_P90 = 6;
+    public static final int SNAPSHOT_TTFB_MAX = 7;
+    /** The number of throughput samples this session, and their percentiles in bytes/s */
+    public static final int SNAPSHOT_THROUGHPUT_SAMPLES = 8;
+    public static final int SNAPSHOT_THROUGHPUT_P10 = 9;
+    public static final int SNAPSHOT_THROUGHPUT_P50 = 10;
+    public static final int SNAPSHOT_THROUGHPUT_P90 = 11;
+    /** The number of stalls, their total and their durations in ms */
+    public static final int SNAPSHOT_STALL_COUNT = 12;
+    public static final int SNAPSHOT_STALL_TIME = 13;
+    public static final int SNAPSHOT_STALL_P90 = 14;
+    public static final int SNAPSHOT_STALL_MAX = 15;
+    /** The bytes downloaded and then discarded because a download restarted */
+    public static final int SNAPSHOT_WASTED_BYTES = 16;
+    /** The number of download attempts that ended with something else than success */
+    public static final int SNAPSHOT_RETRIES = 17;
+    /** The number of (DownloaderService.STATUS_*, count) pairs that follow */
+    public static final int SNAPSHOT_OUTCOME_COUNT = 18;
+    /** Where the outcome pairs start */
+    public static final int SNAPSHOT_OUTCOMES = 19;
+
+    private static final int VERSION = 1;
+
+    private static DownloadMetrics sInstance;
+
+    private final Histogram mTimeToFirstByte = new Histogram();
+    private final Histogram mThroughput = new Histogram();
+    private final Histogram mStalls = new Histogram();
+    private final TreeMap<Integer, Long> mOutcomes = new TreeMap<Integer, Long>();
+    private int mSessions;
+    private long mSessionStart;
+    private long mSessionEnd;
+    private long mSessionBytes;
+    private long mWastedBytes;
+    private long mRetries;
+
+    DownloadMetrics() {
+    }
+
+    public static synchronized DownloadMetrics getInstance() {
+        if (null == sInstance) {
+            sInstance = new DownloadMetrics();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns every metric in one array; see the SNAPSHOT_ constants.
+     */
+    public static long[] getSnapshot() {
+        return getInstance().snapshot();
+    }
+
+    synchronized long[] snapshot() {
+        long[] snapshot = new long[SNAPSHOT_OUTCOMES + 2 * mOutcomes.size()];
+        snapshot[SNAPSHOT_VERSION] = VERSION;
+        snapshot[SNAPSHOT_SESSIONS] = mSessions;
+        if (0 != mSessionStart) {
+            long end = 0 != mSessionEnd ? mSessionEnd : SystemClock.elapsedRealtime();
+            snapshot[SNAPSHOT_SESSION_TIME] = end - mSessionStart;
+        }
+        snapshot[SNAPSHOT_SESSION_BYTES] = mSessionBytes;
+        snapshot[SNAPSHOT_TTFB_COUNT] = mTimeToFirstByte.mCount;
+        snapshot[SNAPSHOT_TTFB_P50] = mTimeToFirstByte.getPercentile(50);
+        snapshot[SNAPSHOT_TTFB_P90] = mTimeToFirstByte.getPercentile(90);
+        snapshot[SNAPSHOT_TTFB_MAX] = mTimeToFirstByte.mMax;
+        snapshot[SNAPSHOT_THROUGHPUT_SAMPLES] = mThroughput.mCount;
+        snapshot[SNAPSHOT_THROUGHPUT_P10] = mThroughput.getPercentile(10);
+        snapshot[SNAPSHOT_THROUGHPUT_P50] = mThroughput.getPercentile(50);
+        snapshot[SNAPSHOT_THROUGHPUT_P90] = mThroughput.getPercentile(90);
+        snapshot[SNAPSHOT_STALL_COUNT] = mStalls.mCount;
+        snapshot[SNAPSHOT_STALL_TIME] = mStalls.mSum;
+        snapshot[SNAPSHOT_STALL_P90] = mStalls.getPercentile(90);
+        snapshot[SNAPSHOT_STALL_MAX] = mStalls.mMax;
+        snapshot[SNAPSHOT_WASTED_BYTES] = mWastedBytes;
+        snapshot[SNAPSHOT_RETRIES] = mRetries;
+        snapshot[SNAPSHOT_OUTCOME_COUNT] = mOutcomes.size();
+        int i = SNAPSHOT_OUTCOMES;
+        for (Map.Entry<Integer, Long> outcome : mOutcomes.entrySet()) {
+            snapshot[i++] = outcome.getKey();
+            snapshot[i++] = outcome.getValue();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Starts a new download session, which clears the throughput samples.
+     */
+    public synchronized void startSession() {
+        mSessions++;
+        mSessionStart = SystemClock.elapsedRealtime();
+        mSessionEnd = 0;
+        mSessionBytes = 0;
+        mThroughput.clear();
+    }
+
+    public synchronized void endSession() {
+        if (0 != mSessionStart && 0 == mSessionEnd) {
+            mSessionEnd = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * @param time the time from sending a request to the first byte of its
+     *            response body, in ms
+     */
+    public synchronized void recordTimeToFirstByte(long time) {
+        mTimeToFirstByte.record(time);
+    }
+
+    /**
+     * Adds the bytes received by all downloads together over a period of time.
+     *
+     * @param bytes the number of bytes received
+     * @param time the length of the period, in ms
+     */
+    public synchronized void recordThroughput(long bytes, long time) {
+        mSessionBytes += bytes;
+        if (time > 0) {
+            mThroughput.record(bytes * 1000 / time);
+        }
+    }
+
+    /**
+     * Accounts for a read from the network, which is a stall if it took at
+     * least {@link Constants#STALL_THRESHOLD} ms.
+     *
+     * @param time how long the read blocked, in ms
+     */
+    public void recordReadTime(long time) {
+        if (time < Constants.STALL_THRESHOLD) {
+            return;
+        }
+        synchronized (this) {
+            mStalls.record(time);
+        }
+    }
+
+    public synchronized void recordWastedBytes(long bytes) {
+        if (bytes > 0) {
+            mWastedBytes += bytes;
+        }
+    }
+
+    /**
+     * Counts the final status of a download attempt; every outcome other than
+     * success also counts as a retry.
+     */
+    public synchronized void recordOutcome(int status) {
+        Long count = mOutcomes.get(status);
+        mOutcomes.put(status, null == count ? 1 : count + 1);
+        if (status != DownloaderService.STATUS_SUCCESS) {
+            mRetries++;
+        }
+    }
+
+    /**
+     * A histogram of non-negative values. Buckets double in width every eight
+     * buckets, which keeps the percentiles within 12.5% of the recorded values
+     * over the whole range of a long.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        long mCount;
+        long mSum;
+        long mMax;
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets[getBucket(value)]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        /**
+         * Returns the value below which the given percentage of the recorded
+         * values fall, rounded up to the end of its bucket, or 0 if nothing
+         * was recorded.
+         */
+        long getPercentile(int percent) {
+            if (0 == mCount) {
+                return 0;
+            }
+            long rank = Math.max(1, (mCount * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(getHighestValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        static int getBucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long getHighestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.google.android.vending.expansion.downloader.impl;
 
 //import com.android.vending.expansion.downloader.R;
+import com.google.android.vending.expansion.downloader.Constants;
 import com.google.android.vending.expansion.downloader.DownloadProgressInfo;
 import com.google.android.vending.expansion.downloader.DownloaderClientMarshaller;
 import com.google.android.vending.expansion.downloader.Helpers;
@@ -27,6 +28,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.os.Messenger;
+import android.os.SystemClock;
 
 /**
  * This class handles displaying the notification associated with the download
@@ -41,12 +43,14 @@ import android.os.Messenger;
  */
 public class DownloadNotification implements IDownloaderClient {
 
+    // the state and the notification builders are changed by every download
+    // thread, so they are guarded by this
     private int mState;
     private final Context mContext;
     private final NotificationManager mNotificationManager;
     private String mCurrentTitle;
 
-    private IDownloaderClient mClientProxy;
+    private volatile IDownloaderClient mClientProxy;
     final ICustomNotification mCustomNotification;
     //    private Notification mNotification;
 //    private Notification mCurrentNotification;
@@ -55,7 +59,28 @@ public class DownloadNotification implements IDownloaderClient {
     private CharSequence mLabel;
     private String mCurrentText;
     private PendingIntent mContentIntent;
-    private DownloadProgressInfo mProgressInfo;
+
+    /*
+     * The latest progress and the state of the progress channel to the client,
+     * guarded by mProgressLock. At most one update is in flight to the client;
+     * anything that happens before it asks for the next one is coalesced into
+     * mProgressInfo.
+     */
+    private final Object mProgressLock = new Object();
+    private final DownloadProgressInfo mProgressInfo = new DownloadProgressInfo(0, 0, -1, 0);
+    private boolean mHasProgress;
+    private boolean mProgressChanged;
+    private boolean mProgressInFlight;
+
+    /*
+     * What the posted progress notification shows, so that it is only posted
+     * again when it would look different. Guarded by this.
+     */
+    private static final int SHOWN_NOTHING = -2;
+    private static final int SHOWN_TEXT_ONLY = -1;
+    private int mShownPercent = SHOWN_NOTHING;
+    private long mShownTimeRemaining;
+    private long mLastProgressPostTime;
 
     static final String LOGTAG = "DownloadNotification";
     static final int NOTIFICATION_ID = LOGTAG.hashCode();
@@ -68,9 +93,10 @@ public class DownloadNotification implements IDownloaderClient {
         this.mContentIntent = mClientIntent;
     }
 
-    public void resendState() {
-        if (null != mClientProxy) {
-            mClientProxy.onDownloadStateChanged(mState);
+    public synchronized void resendState() {
+        IDownloaderClient clientProxy = mClientProxy;
+        if (null != clientProxy) {
+            clientProxy.onDownloadStateChanged(mState);
         }
     }
 
@@ -89,9 +115,10 @@ public class DownloadNotification implements IDownloaderClient {
     }
 
     @Override
-    public void onDownloadStateChanged(int newState) {
-        if (null != mClientProxy) {
-            mClientProxy.onDownloadStateChanged(newState);
+    public synchronized void onDownloadStateChanged(int newState) {
+        IDownloaderClient clientProxy = mClientProxy;
+        if (null != clientProxy) {
+            clientProxy.onDownloadStateChanged(newState);
         }
         if (newState != mState) {
             mState = newState;
@@ -146,6 +173,7 @@ public class DownloadNotification implements IDownloaderClient {
                     ongoingEvent = true;
                     break;
             }
+            invalidateProgressNotification();
             mCurrentText = mContext.getString(stringDownloadID);
             mCurrentTitle = mLabel.toString();
 
@@ -178,12 +206,64 @@ public class DownloadNotification implements IDownloaderClient {
 
     @Override
     public void onDownloadProgress(DownloadProgressInfo progress) {
-        mProgressInfo = progress;
-        if (null != mClientProxy) {
-            mClientProxy.onDownloadProgress(progress);
+        onDownloadProgress(progress.mOverallTotal, progress.mOverallProgress,
+                progress.mTimeRemaining, progress.mCurrentSpeed);
+    }
+
+    /**
+     * Records the latest progress, passes it on to the client if it is ready
+     * for it and updates the notification.
+     */
+    public void onDownloadProgress(long overallTotal, long overallProgress,
+            long timeRemaining, float currentSpeed) {
+        synchronized (mProgressLock) {
+            mProgressInfo.mOverallTotal = overallTotal;
+            mProgressInfo.mOverallProgress = overallProgress;
+            mProgressInfo.mTimeRemaining = timeRemaining;
+            mProgressInfo.mCurrentSpeed = currentSpeed;
+            mHasProgress = true;
+            mProgressChanged = true;
+            sendProgressLocked();
         }
+        postProgressNotification(overallTotal, overallProgress, timeRemaining);
+    }
 
-        if (progress.mOverallTotal <= 0) {
+    /**
+     * Makes the next progress update post its notification, because something
+     * else has been posted in its place.
+     */
+    private synchronized void invalidateProgressNotification() {
+        mShownPercent = SHOWN_NOTHING;
+    }
+
+    /**
+     * Posts the progress notification, but only if its percentage or time
+     * remaining would read differently from the one already showing, and no
+     * more often than every {@link Constants#MIN_NOTIFICATION_TIME} ms.
+     */
+    private synchronized void postProgressNotification(long overallTotal,
+            long overallProgress, long timeRemaining) {
+        int percent = overallTotal <= 0 ? SHOWN_TEXT_ONLY
+                : (int) (overallProgress * 100 / overallTotal);
+        // the time remaining is shown as HH:mm above an hour and as mm:ss below
+        long shownTimeRemaining = timeRemaining > 60 * 60 * 1000
+                ? timeRemaining / (60 * 1000) * (60 * 1000)
+                : timeRemaining / 1000 * 1000;
+        if (mShownPercent != SHOWN_NOTHING) {
+            if (percent == mShownPercent && (percent == SHOWN_TEXT_ONLY
+                    || shownTimeRemaining == mShownTimeRemaining)) {
+                return;
+            }
+            if (SystemClock.elapsedRealtime() - mLastProgressPostTime
+                    < Constants.MIN_NOTIFICATION_TIME) {
+                return;
+            }
+        }
+        mShownPercent = percent;
+        mShownTimeRemaining = shownTimeRemaining;
+        mLastProgressPostTime = SystemClock.elapsedRealtime();
+
+        if (overallTotal <= 0) {
             // we just show the text
 
             getNotificationBuilder().setTicker(mCurrentTitle)
@@ -199,19 +279,39 @@ public class DownloadNotification implements IDownloaderClient {
 //            mCurrentNotification = mNotification;
         } else {
 
-            mCustomNotification.setCurrentBytes(progress.mOverallProgress);
-            mCustomNotification.setTotalBytes(progress.mOverallTotal);
+            mCustomNotification.setCurrentBytes(overallProgress);
+            mCustomNotification.setTotalBytes(overallTotal);
             mCustomNotification.setIcon(android.R.drawable.stat_sys_download);
             mCustomNotification.setPendingIntent(mContentIntent);
             mCustomNotification.setTicker(mLabel + ": " + mCurrentText);
             mCustomNotification.setTitle(mLabel);
-            mCustomNotification.setTimeRemaining(progress.mTimeRemaining);
+            mCustomNotification.setTimeRemaining(timeRemaining);
 
             mCurrentNotificationBuilder = mCustomNotification.updateNotification(mContext);
         }
         mNotificationManager.notify(NOTIFICATION_ID, mCurrentNotificationBuilder.build());
     }
 
+    /**
+     * Called when the client has handled the last progress update. Sends the
+     * latest progress if it changed in the meantime.
+     */
+    public void onProgressRequested() {
+        synchronized (mProgressLock) {
+            mProgressInFlight = false;
+            sendProgressLocked();
+        }
+    }
+
+    private void sendProgressLocked() {
+        if (null == mClientProxy || mProgressInFlight || !mProgressChanged) {
+            return;
+        }
+        mClientProxy.onDownloadProgress(mProgressInfo);
+        mProgressInFlight = true;
+        mProgressChanged = false;
+    }
+
     public interface ICustomNotification {
         void setTitle(CharSequence title);
 
@@ -233,17 +333,26 @@ public class DownloadNotification implements IDownloaderClient {
 
     /**
      * Called in response to onClientUpdated. Creates a new proxy and notifies
-     * it of the current state.
+     * it of the current state. Passing null detaches the client, and nothing
+     * is sent until another one is attached.
      *
-     * @param msg the client Messenger to notify
+     * @param msg the client Messenger to notify, or null
      */
     public void setMessenger(Messenger msg) {
-        mClientProxy = DownloaderClientMarshaller.CreateProxy(msg);
-        if (null != mProgressInfo) {
-            mClientProxy.onDownloadProgress(mProgressInfo);
+        IDownloaderClient clientProxy = null == msg ? null
+                : DownloaderClientMarshaller.CreateProxy(msg);
+        synchronized (mProgressLock) {
+            mClientProxy = clientProxy;
+            mProgressInFlight = false;
+            mProgressChanged = mHasProgress;
+            sendProgressLocked();
         }
-        if (mState != -1) {
-            mClientProxy.onDownloadStateChanged(mState);
+        if (null != clientProxy) {
+            synchronized (this) {
+                if (mState != -1) {
+                    clientProxy.onDownloadStateChanged(mState);
+                }
+            }
         }
     }
 
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+/**
+ * Representation of one byte range of a segmented download from the database.
+ */
+public class DownloadSegment {
+    public final int mIndex;
+    public final long mStartByte;
+    public final long mEndByte; // inclusive
+    public long mCurrentBytes;
+    public long mCrc32; // of the first mCurrentBytes bytes
+    public StreamingChecksum mChecksum; // not stored
+
+    public DownloadSegment(int index, long startByte, long endByte) {
+        mIndex = index;
+        mStartByte = startByte;
+        mEndByte = endByte;
+    }
+
+    /**
+     * Returns the number of bytes covered by this segment.
+     */
+    public long getLength() {
+        return mEndByte - mStartByte + 1;
+    }
+
+    public boolean isComplete() {
+        return mCurrentBytes >= getLength();
+    }
+
+    /**
+     * Splits a file of the given size into at most count byte ranges of
+     * (nearly) equal size.
+     *
+     * @param totalBytes the size of the file
+     * @param count the number of segments wanted
+     * @return the segments, in file order
+     */
+    public static DownloadSegment[] split(long totalBytes, int count) {
+        if (count > totalBytes) {
+            count = (int) Math.max(1, totalBytes);
+        }
+        long segmentSize = (totalBytes + count - 1) / count;
+        count = (int) ((totalBytes + segmentSize - 1) / segmentSize);
+        DownloadSegment[] segments = new DownloadSegment[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            long end = Math.min(start + segmentSize, totalBytes) - 1;
+            segments[i] = new DownloadSegment(i, start, end);
+        }
+        return segments;
+    }
+}
@@ -19,28 +19,40 @@ package com.google.android.vending.expansion.downloader.impl;
 import com.google.android.vending.expansion.downloader.Constants;
 import com.google.android.vending.expansion.downloader.Helpers;
 import com.google.android.vending.expansion.downloader.IDownloaderClient;
+import com.google.android.vending.expansion.zipfile.ZipIndex;
 
-import org.apache.http.Header;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.params.ConnRouteParams;
-
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.net.Proxy;
+import android.os.Build;
 import android.os.PowerManager;
 import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.SyncFailedException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runs an actual download
@@ -52,15 +64,29 @@ public class DownloadThread {
     private DownloaderService mService;
     private final DownloadsDB mDB;
     private final DownloadNotification mNotification;
+    private final DownloadMetrics mMetrics;
     private String mUserAgent;
+    private final int mMaxConnections;
 
     public DownloadThread(DownloadInfo info, DownloaderService service,
             DownloadNotification notification) {
+        this(info, service, notification, Constants.MAX_SEGMENT_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections the most connections a segmented download of this
+     *            file may open at once
+     */
+    public DownloadThread(DownloadInfo info, DownloaderService service,
+            DownloadNotification notification, int maxConnections) {
+        mMaxConnections = Math.max(1, Math.min(maxConnections,
+                Constants.MAX_SEGMENT_CONNECTIONS));
         mContext = service;
         mInfo = info;
         mService = service;
         mNotification = notification;
         mDB = DownloadsDB.getDB(service);
+        mMetrics = DownloadMetrics.getInstance();
         mUserAgent = "APKXDL (Linux; U; Android " + android.os.Build.VERSION.RELEASE + ";"
                 + Locale.getDefault().toString() + "; " + android.os.Build.DEVICE + "/"
                 + android.os.Build.ID + ")" +
@@ -79,9 +105,10 @@ public class DownloadThread {
      */
     private static class State {
         public String mFilename;
-        public FileOutputStream mStream;
-        public boolean mCountRetry = false;
-        public int mRetryAfter = 0;
+        public RandomAccessFile mFile;
+        public FileChannel mChannel;
+        public int mRetryClass = RetryPolicy.CLASS_NONE;
+        public long mRetryAfter = 0;
         public int mRedirectCount = 0;
         public String mNewUri;
         public boolean mGotData = false;
@@ -95,18 +122,23 @@ public class DownloadThread {
     }
 
     /**
-     * State within executeDownload()
+     * State within executeSegmentedDownload(), shared by all of the segment
+     * workers. Byte counts are guarded by the object's monitor.
      */
-    private static class InnerState {
-        public int mBytesSoFar = 0;
-        public int mBytesThisSession = 0;
-        public String mHeaderETag;
-        public boolean mContinuingDownload = false;
-        public String mHeaderContentLength;
-        public String mHeaderContentDisposition;
-        public String mHeaderContentLocation;
-        public int mBytesNotified = 0;
+    private static class SegmentedState {
+        public DownloadSegment[] mSegments;
+        public RandomAccessFile mFile;
+        public FileChannel mChannel;
+        public long mBytesSoFar = 0;
+        public long mBytesThisSession = 0;
+        public long mBytesNotified = 0;
         public long mTimeLastNotification = 0;
+        public long mBytesCheckpointed = 0;
+        public long mTimeLastCheckpoint = 0;
+        public final List<DownloadTransport.Request> mRequests =
+                new ArrayList<DownloadTransport.Request>();
+        public volatile boolean mAborted = false;
+        public volatile boolean mRangesUnsupported = false;
     }
 
     /**
@@ -156,19 +188,20 @@ public class DownloadThread {
      * @param url the target URL for the request
      * @note Calling this method requires permission
      *       android.permission.ACCESS_NETWORK_STATE
-     * @return The preferred proxy to be used by clients, or null if there is no
-     *         proxy.
+     * @return The preferred proxy to be used by clients, or
+     *         {@link java.net.Proxy#NO_PROXY} if there is no proxy.
      */
-    public HttpHost getPreferredHttpHost(Context context,
+    public java.net.Proxy getPreferredProxy(Context context,
             String url) {
         if (!isLocalHost(url) && !mService.isWiFi()) {
             final String proxyHost = Proxy.getHost(context);
             if (proxyHost != null) {
-                return new HttpHost(proxyHost, Proxy.getPort(context), "http");
+                return new java.net.Proxy(java.net.Proxy.Type.HTTP,
+                        InetSocketAddress.createUnresolved(proxyHost, Proxy.getPort(context)));
             }
         }
 
-        return null;
+        return java.net.Proxy.NO_PROXY;
     }
 
     static final private boolean isLocalHost(String url) {
@@ -204,7 +237,7 @@ public class DownloadThread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         State state = new State(mInfo, mService);
-        AndroidHttpClient client = null;
+        DownloadTransport transport = null;
         PowerManager.WakeLock wakeLock = null;
         int finalStatus = DownloaderService.STATUS_UNKNOWN_ERROR;
 
@@ -218,22 +251,24 @@ public class DownloadThread {
                 Log.v(Constants.TAG, "  at " + mInfo.mUri);
             }
 
-            client = AndroidHttpClient.newInstance(userAgent(), mContext);
+            transport = mService.getTransport(userAgent());
 
             boolean finished = false;
+            boolean fromDelta = false;
+            if (null != mInfo.mDeltaBase) {
+                finished = fromDelta = executeDeltaDownload(state, transport);
+            }
+            if (!finished && useSegmentedDownload(state)) {
+                finished = executeSegmentedDownload(state, transport);
+            }
             while (!finished) {
                 if (Constants.LOGV) {
                     Log.v(Constants.TAG, "initiating download for " + mInfo.mFileName);
                     Log.v(Constants.TAG, "  at " + mInfo.mUri);
                 }
-                // Set or unset proxy, which may have changed since last GET
-                // request.
-                // setDefaultProxy() supports null as proxy parameter.
-                ConnRouteParams.setDefaultProxy(client.getParams(),
-                        getPreferredHttpHost(mContext, state.mRequestUri));
-                HttpGet request = new HttpGet(state.mRequestUri);
+                DownloadTransport.Request request = transport.newRequest(state.mRequestUri);
                 try {
-                    executeDownload(state, client, request);
+                    executeDownload(state, transport, request);
                     finished = true;
                 } catch (RetryDownload exc) {
                     // fall through
@@ -248,6 +283,10 @@ public class DownloadThread {
                 Log.v(Constants.TAG, "  at " + mInfo.mUri);
             }
             finalizeDestinationFile(state);
+            if (fromDelta) {
+                deleteDeltaBase();
+            }
+            DownloadVerifier.ensureZipIndex(mService, mInfo);
             finalStatus = DownloaderService.STATUS_SUCCESS;
         } catch (StopRequest error) {
             // remove the cause before printing, in case it contains PII
@@ -266,24 +305,183 @@ public class DownloadThread {
                 wakeLock.release();
                 wakeLock = null;
             }
-            if (client != null) {
-                client.close();
-                client = null;
-            }
+            // the transport and its connections belong to the service
+            transport = null;
             cleanupDestination(state, finalStatus);
-            notifyDownloadCompleted(finalStatus, state.mCountRetry, state.mRetryAfter,
+            notifyDownloadCompleted(finalStatus, state.mRetryClass, state.mRetryAfter,
                     state.mRedirectCount, state.mGotData, state.mFilename);
         }
     }
 
+    /**
+     * Build the file by applying a delta to the file it replaces, see
+     * {@link DeltaPatch}. When there is no usable delta, because the server
+     * has none or it does not apply to the file on disk, the delta is dropped
+     * and the file is downloaded in full instead.
+     *
+     * @return true if the file is complete, false if it has to be downloaded
+     *         in full
+     */
+    private boolean executeDeltaDownload(State state, DownloadTransport transport)
+            throws StopRequest {
+        File base = new File(Helpers.generateSaveFileName(mService, mInfo.mDeltaBase));
+        if (!base.exists()) {
+            abandonDelta(state, "base file is missing");
+            return false;
+        }
+        state.mRequestUri = mInfo.mDeltaUri;
+        for (;;) {
+            if (Constants.LOGV) {
+                Log.v(Constants.TAG, "initiating delta download for " + mInfo.mFileName);
+                Log.v(Constants.TAG, "  at " + state.mRequestUri);
+            }
+            DownloadTransport.Request request = transport.newRequest(state.mRequestUri);
+            try {
+                return applyDelta(state, request, base);
+            } catch (RetryDownload exc) {
+                // redirected
+            } finally {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * Send a single delta request and apply the delta as it arrives. A delta
+     * is small next to the file it builds, so it is not resumed: every
+     * attempt starts the file over.
+     */
+    private boolean applyDelta(State state, DownloadTransport.Request request, File base)
+            throws StopRequest, RetryDownload {
+        checkPausedOrCanceled(state);
+
+        File f = new File(state.mFilename);
+        if (f.exists()) {
+            long length = f.length();
+            if (f.delete()) {
+                mMetrics.recordWastedBytes(length);
+            }
+        }
+        try {
+            state.mFilename = mService.generateSaveFile(mInfo.mFileName, mInfo.mTotalBytes);
+        } catch (DownloaderService.GenerateSaveFileError exc) {
+            throw new StopRequest(exc.mStatus, exc.mMessage);
+        }
+        mInfo.mCurrentBytes = 0;
+        mInfo.mCrc32 = StreamingChecksum.UNKNOWN;
+
+        checkConnectivity(state);
+        mNotification.onDownloadStateChanged(IDownloaderClient.STATE_CONNECTING);
+        TransferState innerState = new TransferState();
+        innerState.mTimeRequestSent = System.currentTimeMillis();
+        DownloadTransport.Response response = sendRequest(state, request);
+        int statusCode = response.getStatusCode();
+        if (isTransientServerError(statusCode)
+                && RetryPolicy.canRetry(mInfo, RetryPolicy.CLASS_SERVER)) {
+            handleServiceUnavailable(state, response, statusCode);
+        }
+        if (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307) {
+            handleRedirect(state, response, statusCode);
+        }
+        if (statusCode != DownloaderService.STATUS_SUCCESS) {
+            abandonDelta(state, "no delta available, HTTP " + statusCode);
+            return false;
+        }
+        state.mRedirectCount = 0;
+        ReadableByteChannel source = openResponseEntity(state, response);
+
+        RandomAccessFile baseFile = null;
+        ByteBuffer buffer = BufferPool.getInstance().acquire();
+        try {
+            try {
+                baseFile = new RandomAccessFile(base, "r");
+                new File(Helpers.getSaveFilePath(mService)).mkdirs();
+                openDestination(state, true);
+            } catch (IOException ex) {
+                throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
+                        "while opening delta files: " + ex.toString(), ex);
+            }
+            DeltaPatch patch = new DeltaPatch(source, baseFile.getChannel());
+            try {
+                patch.readHeader();
+                if (patch.getTargetLength() != mInfo.mTotalBytes) {
+                    throw new DeltaPatch.PatchException("delta is for a different file");
+                }
+                mNotification.onDownloadStateChanged(IDownloaderClient.STATE_DOWNLOADING);
+                long deltaBytes = patch.getBytesRead();
+                while (patch.read(buffer)) {
+                    state.mGotData = true;
+                    mService.getBandwidthLimiter().acquire(
+                            (int) (patch.getBytesRead() - deltaBytes));
+                    deltaBytes = patch.getBytesRead();
+                    int length = buffer.remaining();
+                    writeDataToDestination(state, buffer, length);
+                    innerState.addBytes(length);
+                    notifyProgress(innerState, System.currentTimeMillis());
+                    checkPausedOrCanceled(state);
+                }
+            } catch (DeltaPatch.PatchException ex) {
+                abandonDelta(state, ex.getMessage());
+                return false;
+            } catch (IOException ex) {
+                logNetworkState();
+                throw new StopRequest(getFinalStatusForHttpError(state),
+                        "while applying delta: " + ex.toString(), ex);
+            }
+            // the patch has checked the length and the checksum of the result
+            mInfo.mCurrentBytes = innerState.mBytesSoFar;
+            mInfo.mCrc32 = patch.getTargetCrc32();
+            return true;
+        } finally {
+            BufferPool.getInstance().release(buffer);
+            if (null != baseFile) {
+                try {
+                    baseFile.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Give up on the delta for good and prepare to download the whole file.
+     */
+    private void abandonDelta(State state, String reason) {
+        Log.i(Constants.TAG, "downloading " + mInfo.mFileName + " in full: " + reason);
+        closeDestination(state);
+        new File(state.mFilename).delete();
+        state.mFilename = mService.generateTempSaveFileName(mInfo.mFileName);
+        state.mRequestUri = mInfo.mUri;
+        state.mRedirectCount = mInfo.mRedirectCount;
+        mInfo.mDeltaBase = null;
+        mInfo.mDeltaUri = null;
+        mInfo.mCurrentBytes = 0;
+        mInfo.mCrc32 = StreamingChecksum.UNKNOWN;
+        mDB.updateDownload(mInfo);
+    }
+
+    /**
+     * Delete the file a completed delta was applied to, which nothing refers
+     * to any more.
+     */
+    private void deleteDeltaBase() {
+        String base = mInfo.mDeltaBase;
+        mInfo.mDeltaBase = null;
+        mInfo.mDeltaUri = null;
+        if (!base.equals(mInfo.mFileName)) {
+            new File(Helpers.generateSaveFileName(mService, base)).delete();
+            ZipIndex.getIndexFile(mService, base).delete();
+        }
+    }
+
     /**
      * Fully execute a single download request - setup and send the request,
      * handle the response, and transfer the data to the destination file.
      */
-    private void executeDownload(State state, AndroidHttpClient client, HttpGet request)
+    private void executeDownload(State state, DownloadTransport transport,
+            DownloadTransport.Request request)
             throws StopRequest, RetryDownload {
-        InnerState innerState = new InnerState();
-        byte data[] = new byte[Constants.BUFFER_SIZE];
+        TransferState innerState = new TransferState();
 
         checkPausedOrCanceled(state);
 
@@ -295,7 +493,8 @@ public class DownloadThread {
         checkConnectivity(state);
 
         mNotification.onDownloadStateChanged(IDownloaderClient.STATE_CONNECTING);
-        HttpResponse response = sendRequest(state, client, request);
+        innerState.mTimeRequestSent = System.currentTimeMillis();
+        DownloadTransport.Response response = sendRequest(state, request);
         handleExceptionalStatus(state, innerState, response);
 
         if (Constants.LOGV) {
@@ -303,9 +502,9 @@ public class DownloadThread {
         }
 
         processResponseHeaders(state, innerState, response);
-        InputStream entityStream = openResponseEntity(state, response);
+        ReadableByteChannel source = openResponseEntity(state, response);
         mNotification.onDownloadStateChanged(IDownloaderClient.STATE_DOWNLOADING);
-        transferData(state, innerState, data, entityStream);
+        transferData(state, innerState, source);
     }
 
     /**
@@ -332,27 +531,813 @@ public class DownloadThread {
 
     /**
      * Transfer as much data as possible from the HTTP response to the
-     * destination file.
+     * destination file. Data moves through a pooled direct buffer whose used
+     * size follows the measured throughput.
      * 
-     * @param data buffer to use to read data
-     * @param entityStream stream for reading the HTTP response entity
+     * @param source channel for reading the HTTP response entity
      */
-    private void transferData(State state, InnerState innerState, byte[] data,
-            InputStream entityStream) throws StopRequest {
-        for (;;) {
-            int bytesRead = readFromResponse(state, innerState, data, entityStream);
-            if (bytesRead == -1) { // success, end of stream already reached
-                handleEndOfStream(state, innerState);
+    private void transferData(State state, TransferState innerState,
+            ReadableByteChannel source) throws StopRequest {
+        if (Constants.PIPELINED_WRITES) {
+            transferDataPipelined(state, innerState, source);
+            return;
+        }
+        ChunkSizer sizer = new ChunkSizer();
+        ByteBuffer buffer = BufferPool.getInstance().acquire();
+        try {
+            for (;;) {
+                buffer.clear();
+                buffer.limit(sizer.getChunkSize());
+                int bytesRead = readFromResponse(state, innerState, buffer, source);
+                if (bytesRead == -1) { // success, end of stream already reached
+                    handleEndOfStream(state, innerState);
+                    return;
+                }
+
+                state.mGotData = true;
+                mService.getBandwidthLimiter().acquire(bytesRead);
+                buffer.flip();
+                if (null != innerState.mChecksum) {
+                    innerState.mChecksum.update(buffer);
+                }
+                writeDataToDestination(state, buffer, bytesRead);
+                innerState.addBytes(bytesRead);
+                sizer.onTransferred(bytesRead, System.currentTimeMillis());
+                reportProgress(state, innerState);
+
+                checkPausedOrCanceled(state);
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * Transfer the HTTP response to the destination file on two threads. This
+     * thread reads from the network into a bounded ring of buffers while a
+     * {@link PipelineWriter} writes them out and reports the progress, so a
+     * slow write or sync does not stall the socket. Once every buffer is
+     * waiting to be written the reader blocks until one is free again.
+     * 
+     * @param source channel for reading the HTTP response entity
+     */
+    private void transferDataPipelined(State state, TransferState innerState,
+            ReadableByteChannel source) throws StopRequest {
+        ChunkSizer sizer = new ChunkSizer();
+        PipelineWriter writer = new PipelineWriter(state, innerState);
+        Thread writerThread = new Thread(writer, "DownloadWriter");
+        writerThread.start();
+        try {
+            for (;;) {
+                ByteBuffer buffer = writer.takeFreeBuffer();
+                buffer.clear();
+                buffer.limit(sizer.getChunkSize());
+                long readStart = System.currentTimeMillis();
+                int bytesRead;
+                try {
+                    bytesRead = source.read(buffer);
+                } catch (IOException ex) {
+                    writer.recycle(buffer);
+                    // let the data that did arrive reach the file first
+                    writer.finish(writerThread);
+                    throw getStopRequestForReadError(state, innerState, ex);
+                }
+                recordRead(innerState, readStart, bytesRead);
+                if (bytesRead == -1) { // success, end of stream already reached
+                    writer.recycle(buffer);
+                    writer.finish(writerThread);
+                    handleEndOfStream(state, innerState);
+                    return;
+                }
+
+                state.mGotData = true;
+                mService.getBandwidthLimiter().acquire(bytesRead);
+                buffer.flip();
+                writer.submit(buffer);
+                sizer.onTransferred(bytesRead, System.currentTimeMillis());
+
+                checkPausedOrCanceled(state);
+            }
+        } finally {
+            writer.stop(writerThread);
+        }
+    }
+
+    /**
+     * Writes the buffers filled by the reader of a pipelined transfer to the
+     * destination file, and hands them back once written. After a failed
+     * write it keeps recycling buffers without writing so the reader never
+     * waits on it; the reader picks up the failure on its next buffer.
+     */
+    private class PipelineWriter implements Runnable {
+        private final ByteBuffer mEndOfStream = ByteBuffer.allocate(0);
+        private final State mState;
+        private final TransferState mInnerState;
+        private final LinkedBlockingQueue<ByteBuffer> mFilled =
+                new LinkedBlockingQueue<ByteBuffer>();
+        private final LinkedBlockingQueue<ByteBuffer> mFree =
+                new LinkedBlockingQueue<ByteBuffer>();
+        private int mAllocated;
+        private boolean mFinished;
+        private volatile StopRequest mError;
+
+        PipelineWriter(State state, TransferState innerState) {
+            mState = state;
+            mInnerState = innerState;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            for (;;) {
+                ByteBuffer buffer;
+                try {
+                    buffer = mFilled.take();
+                } catch (InterruptedException ex) {
+                    mError = new StopRequest(DownloaderService.STATUS_WAITING_TO_RETRY,
+                            "interrupted while writing destination file");
+                    continue;
+                }
+                if (buffer == mEndOfStream) {
+                    return;
+                }
+                if (null == mError) {
+                    try {
+                        int bytesWritten = buffer.remaining();
+                        if (null != mInnerState.mChecksum) {
+                            mInnerState.mChecksum.update(buffer);
+                        }
+                        writeDataToDestination(mState, buffer, bytesWritten);
+                        mInnerState.addBytes(bytesWritten);
+                        reportProgress(mState, mInnerState);
+                    } catch (StopRequest error) {
+                        mError = error;
+                    } catch (RuntimeException ex) {
+                        mError = new StopRequest(DownloaderService.STATUS_UNKNOWN_ERROR,
+                                "while writing destination file: " + ex, ex);
+                    }
+                }
+                mFree.add(buffer);
+            }
+        }
+
+        /**
+         * Returns an empty buffer, waiting for the writer when the whole ring
+         * is in use.
+         */
+        ByteBuffer takeFreeBuffer() throws StopRequest {
+            checkError();
+            ByteBuffer buffer = mFree.poll();
+            if (null == buffer && mAllocated < Constants.PIPELINE_BUFFERS) {
+                mAllocated++;
+                return BufferPool.getInstance().acquire();
+            }
+            try {
+                if (null == buffer) {
+                    buffer = mFree.take();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new StopRequest(DownloaderService.STATUS_WAITING_TO_RETRY,
+                        "interrupted while waiting for the destination file");
+            }
+            checkError();
+            return buffer;
+        }
+
+        void submit(ByteBuffer buffer) {
+            mFilled.add(buffer);
+        }
+
+        void recycle(ByteBuffer buffer) {
+            mFree.add(buffer);
+        }
+
+        /**
+         * Wait for every submitted buffer to be written, and rethrow the
+         * failure of the writer if there was one.
+         */
+        void finish(Thread writerThread) throws StopRequest {
+            stop(writerThread);
+            checkError();
+        }
+
+        /**
+         * Wait for every submitted buffer to be written and return the
+         * buffers to the pool.
+         */
+        void stop(Thread writerThread) {
+            if (mFinished) {
                 return;
             }
+            mFinished = true;
+            mFilled.add(mEndOfStream);
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    writerThread.join();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            ByteBuffer buffer;
+            while (null != (buffer = mFree.poll())) {
+                BufferPool.getInstance().release(buffer);
+            }
+        }
 
-            state.mGotData = true;
-            writeDataToDestination(state, data, bytesRead);
-            innerState.mBytesSoFar += bytesRead;
-            innerState.mBytesThisSession += bytesRead;
-            reportProgress(state, innerState);
+        private void checkError() throws StopRequest {
+            StopRequest error = mError;
+            if (null != error) {
+                throw error;
+            }
+        }
+    }
 
-            checkPausedOrCanceled(state);
+    /**
+     * Returns true if this download should be fetched as several parallel
+     * byte ranges. Downloads that were already started as a single stream
+     * are resumed the same way.
+     */
+    private boolean useSegmentedDownload(State state) {
+        if (!Constants.SEGMENTED_DOWNLOADS
+                || mInfo.mTotalBytes < Constants.MIN_SEGMENTED_DOWNLOAD_SIZE) {
+            return false;
+        }
+        if (null != mDB.getSegments(mInfo)) {
+            return true;
+        }
+        File f = new File(state.mFilename);
+        return !f.exists() || f.length() == 0;
+    }
+
+    /**
+     * Fetch the download as several byte ranges on a bounded pool of workers,
+     * each writing at its own offset of the preallocated destination file.
+     *
+     * @return true if the download completed, false if the server does not
+     *         support range requests and a single stream should be used.
+     */
+    private boolean executeSegmentedDownload(State state, DownloadTransport transport)
+            throws StopRequest {
+        SegmentedState segState = new SegmentedState();
+
+        checkPausedOrCanceled(state);
+        try {
+            setupSegmentedDestination(state, segState);
+            // check just before sending the requests to avoid using an
+            // invalid connection at all
+            checkConnectivity(state);
+
+            mNotification.onDownloadStateChanged(IDownloaderClient.STATE_CONNECTING);
+            runSegmentWorkers(state, segState, transport);
+        } catch (StopRequest error) {
+            if (!segState.mRangesUnsupported) {
+                throw error;
+            }
+        } finally {
+            closeSegmentedDestination(segState);
+        }
+
+        if (segState.mRangesUnsupported) {
+            Log.w(Constants.TAG, "server ignored range request for " + mInfo.mFileName
+                    + ", falling back to a single stream");
+            mDB.deleteSegments(mInfo);
+            new File(state.mFilename).delete();
+            mMetrics.recordWastedBytes(segState.mBytesSoFar);
+            mInfo.mCurrentBytes = 0;
+            mInfo.mCrc32 = StreamingChecksum.UNKNOWN;
+            mDB.updateDownload(mInfo);
+            return false;
+        }
+
+        mInfo.mCurrentBytes = segState.mBytesSoFar;
+        if (mInfo.mCurrentBytes != mInfo.mTotalBytes) {
+            mDB.updateDownload(mInfo);
+            throw new StopRequest(getFinalStatusForHttpError(state),
+                    "segmented download ended early");
+        }
+        // the checksum of the file is made of those of its segments
+        long crc32 = 0;
+        for (DownloadSegment segment : segState.mSegments) {
+            crc32 = StreamingChecksum.combine(crc32, segment.mChecksum.getValue(),
+                    segment.getLength());
+        }
+        mInfo.mCrc32 = crc32;
+        mDB.updateDownload(mInfo);
+        return true;
+    }
+
+    /**
+     * Load the segments of an interrupted download, or split a new one into
+     * segments and preallocate its destination file.
+     */
+    private void setupSegmentedDestination(State state, SegmentedState segState)
+            throws StopRequest {
+        if (!Helpers.isFilenameValid(state.mFilename)) {
+            // this should never happen
+            throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
+                    "found invalid internal destination filename");
+        }
+        File f = new File(state.mFilename);
+        DownloadSegment[] segments = mDB.getSegments(mInfo);
+        boolean resuming = null != segments && f.exists()
+                && f.length() == mInfo.mTotalBytes;
+        if (resuming) {
+            long bytesSoFar = 0;
+            for (DownloadSegment segment : segments) {
+                bytesSoFar += segment.mCurrentBytes;
+            }
+            if (bytesSoFar > 0 && !hasETag()) {
+                // This should've been caught upon failure
+                f.delete();
+                mMetrics.recordWastedBytes(bytesSoFar);
+                mDB.deleteSegments(mInfo);
+                throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
+                        "Trying to resume a download that can't be resumed");
+            }
+            segState.mBytesSoFar = bytesSoFar;
+        } else {
+            if (f.exists()) {
+                f.delete();
+                mMetrics.recordWastedBytes(mInfo.mCurrentBytes);
+            }
+            try {
+                state.mFilename = mService.generateSaveFile(mInfo.mFileName, mInfo.mTotalBytes);
+            } catch (DownloaderService.GenerateSaveFileError exc) {
+                throw new StopRequest(exc.mStatus, exc.mMessage);
+            }
+            segments = DownloadSegment.split(mInfo.mTotalBytes, Constants.SEGMENT_COUNT);
+            mInfo.mETag = null;
+            mInfo.mCurrentBytes = 0;
+            mInfo.mCrc32 = StreamingChecksum.UNKNOWN;
+            mDB.updateDownload(mInfo);
+        }
+        for (DownloadSegment segment : segments) {
+            segment.mChecksum = new StreamingChecksum(segment.mCrc32, segment.mCurrentBytes);
+        }
+
+        try {
+            try {
+                segState.mFile = new RandomAccessFile(state.mFilename, "rw");
+            } catch (FileNotFoundException exc) {
+                // make sure the directory exists
+                new File(Helpers.getSaveFilePath(mService)).mkdirs();
+                segState.mFile = new RandomAccessFile(state.mFilename, "rw");
+            }
+            if (!resuming) {
+                preallocateDestination(segState.mFile, mInfo.mTotalBytes);
+            }
+            segState.mChannel = segState.mFile.getChannel();
+        } catch (IOException ex) {
+            throw getStopRequestForWriteError(state, 0, ex);
+        }
+        if (!resuming && !mDB.updateSegments(mInfo, segments)) {
+            throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
+                    "unable to store download segments");
+        }
+        segState.mSegments = segments;
+        if (Constants.LOGV) {
+            Log.v(Constants.TAG, "writing " + mInfo.mUri + " to " + state.mFilename + " in "
+                    + segments.length + " segments");
+        }
+    }
+
+    /**
+     * Gives a new destination file its full length. Where the platform can,
+     * the blocks are allocated right away, so a full disk stops the download
+     * before any data is transferred and the file is laid out in few extents;
+     * otherwise the file is only extended and may be sparse.
+     */
+    private void preallocateDestination(RandomAccessFile file, long length)
+            throws StopRequest, IOException {
+        if (Build.VERSION.SDK_INT >= 21) {
+            int result = Fallocate.allocate(file, length);
+            if (result == Fallocate.ALLOCATED) {
+                return;
+            }
+            if (result == Fallocate.NO_SPACE) {
+                throw new StopRequest(DownloaderService.STATUS_INSUFFICIENT_SPACE_ERROR,
+                        "insufficient space to preallocate destination file");
+            }
+            if (result == Fallocate.TOO_LARGE) {
+                throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
+                        "destination file too large for its filesystem");
+            }
+            // not supported by this filesystem, e.g. FAT or FUSE
+        }
+        file.setLength(length);
+    }
+
+    /**
+     * Keeps the API 21 classes out of DownloadThread itself, so older
+     * platforms never have to resolve them.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class Fallocate {
+        static final int ALLOCATED = 0;
+        static final int NO_SPACE = 1;
+        static final int TOO_LARGE = 2;
+        static final int UNSUPPORTED = 3;
+
+        static int allocate(RandomAccessFile file, long length) throws IOException {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, length);
+                return ALLOCATED;
+            } catch (ErrnoException ex) {
+                if (ex.errno == OsConstants.ENOSPC) {
+                    return NO_SPACE;
+                }
+                if (ex.errno == OsConstants.EFBIG) {
+                    return TOO_LARGE;
+                }
+                if (Constants.LOGV) {
+                    Log.v(Constants.TAG, "unable to preallocate destination file: " + ex);
+                }
+                return UNSUPPORTED;
+            }
+        }
+    }
+
+    /**
+     * Close the destination file of a segmented download.
+     */
+    private void closeSegmentedDestination(SegmentedState segState) {
+        try {
+            if (segState.mFile != null) {
+                segState.mFile.close();
+                segState.mFile = null;
+                segState.mChannel = null;
+            }
+        } catch (IOException ex) {
+            if (Constants.LOGV) {
+                Log.v(Constants.TAG, "exception when closing the file after download : " + ex);
+            }
+        }
+    }
+
+    /**
+     * Run a worker for every incomplete segment and wait for all of them. The
+     * first failure aborts the remaining workers.
+     */
+    private void runSegmentWorkers(State state, SegmentedState segState,
+            DownloadTransport transport) throws StopRequest {
+        int pending = 0;
+        for (DownloadSegment segment : segState.mSegments) {
+            if (!segment.isComplete()) {
+                pending++;
+            }
+        }
+        if (pending == 0) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(pending, mMaxConnections));
+        CompletionService<StopRequest> completion =
+                new ExecutorCompletionService<StopRequest>(executor);
+        try {
+            for (DownloadSegment segment : segState.mSegments) {
+                if (!segment.isComplete()) {
+                    completion.submit(new SegmentWorker(state, segState, transport, segment));
+                }
+            }
+            mNotification.onDownloadStateChanged(IDownloaderClient.STATE_DOWNLOADING);
+            for (int i = 0; i < pending; i++) {
+                StopRequest error;
+                try {
+                    error = completion.take().get();
+                } catch (ExecutionException ex) {
+                    error = new StopRequest(DownloaderService.STATUS_UNKNOWN_ERROR,
+                            "while downloading segment: " + ex.getCause(), ex.getCause());
+                }
+                if (null != error) {
+                    throw error;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StopRequest(DownloaderService.STATUS_WAITING_TO_RETRY,
+                    "interrupted while downloading segments");
+        } finally {
+            // the workers are stopped by aborting their requests, never by
+            // interrupting them: an interrupt during a write would close the
+            // shared FileChannel, and the progress could not be synced below
+            abortSegmentWorkers(segState);
+            executor.shutdown();
+            awaitSegmentWorkers(executor);
+            persistSegmentProgress(segState);
+        }
+    }
+
+    /**
+     * Wait until every segment worker has returned, so that none of them
+     * writes to the destination file any more.
+     */
+    private static void awaitSegmentWorkers(ExecutorService executor) {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                if (executor.awaitTermination(Constants.SOCKET_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop every segment worker that is still transferring data.
+     */
+    private void abortSegmentWorkers(SegmentedState segState) {
+        segState.mAborted = true;
+        synchronized (segState.mRequests) {
+            for (DownloadTransport.Request request : segState.mRequests) {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * Sync the segmented destination file and then store the progress of
+     * every segment, so the database never claims more data than is on disk.
+     */
+    private void persistSegmentProgress(SegmentedState segState) {
+        synchronized (segState) {
+            if (segState.mChannel != null) {
+                try {
+                    segState.mChannel.force(false);
+                } catch (IOException ex) {
+                    Log.w(Constants.TAG, "IOException trying to sync segments: " + ex);
+                    return;
+                }
+            }
+            mInfo.mCurrentBytes = segState.mBytesSoFar;
+            for (DownloadSegment segment : segState.mSegments) {
+                segment.mChecksum.checkpoint();
+                segment.mCrc32 = segment.mChecksum.getValue();
+            }
+            mDB.journalDownloadCurrentBytes(mInfo);
+            mDB.journalSegmentsCurrentBytes(mInfo, segState.mSegments);
+            segState.mBytesCheckpointed = segState.mBytesSoFar;
+            segState.mTimeLastCheckpoint = System.currentTimeMillis();
+        }
+    }
+
+    private boolean hasETag() {
+        return mInfo.mETag != null && mInfo.mETag.length() > 0;
+    }
+
+    /**
+     * Fetches one byte range of a segmented download. Returns the reason the
+     * segment stopped, or null once it is complete.
+     */
+    private class SegmentWorker implements Callable<StopRequest> {
+        private final State mState;
+        private final SegmentedState mSegState;
+        private final DownloadTransport mTransport;
+        private final DownloadSegment mSegment;
+        private final TransferState mInnerState = new TransferState();
+        // redirects are counted per worker; the workers share mState, and
+        // each of them follows the same redirects
+        private int mRedirectCount;
+        private String mRequestUri;
+
+        SegmentWorker(State state, SegmentedState segState, DownloadTransport transport,
+                DownloadSegment segment) {
+            mState = state;
+            mSegState = segState;
+            mTransport = transport;
+            mSegment = segment;
+            mInnerState.mContinuingDownload = true;
+        }
+
+        @Override
+        public StopRequest call() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                while (!mSegment.isComplete() && !mSegState.mAborted) {
+                    synchronized (mState) {
+                        mRequestUri = mState.mRequestUri;
+                    }
+                    DownloadTransport.Request request = mTransport.newRequest(mRequestUri);
+                    synchronized (mSegState.mRequests) {
+                        mSegState.mRequests.add(request);
+                    }
+                    try {
+                        executeSegment(request);
+                    } catch (RetryDownload exc) {
+                        // redirected, fall through
+                    } finally {
+                        request.abort();
+                        synchronized (mSegState.mRequests) {
+                            mSegState.mRequests.remove(request);
+                        }
+                    }
+                }
+                return null;
+            } catch (StopRequest error) {
+                return error;
+            }
+        }
+
+        private void executeSegment(DownloadTransport.Request request)
+                throws StopRequest, RetryDownload {
+            checkPausedOrCanceled(mState);
+
+            long startByte;
+            synchronized (mSegState) {
+                startByte = mSegment.mStartByte + mSegment.mCurrentBytes;
+            }
+            request.addHeader("Range", "bytes=" + startByte + "-" + mSegment.mEndByte);
+            synchronized (mInfo) {
+                if (hasETag()) {
+                    request.addHeader("If-Match", mInfo.mETag);
+                }
+            }
+
+            checkConnectivity(mState);
+            mInnerState.mTimeRequestSent = System.currentTimeMillis();
+            DownloadTransport.Response response = sendRequest(mState, request);
+            handleSegmentStatus(response);
+            ReadableByteChannel source = openResponseEntity(mState, response);
+            ByteBuffer buffer = BufferPool.getInstance().acquire();
+            try {
+                transferSegmentData(source, buffer, startByte);
+            } finally {
+                BufferPool.getInstance().release(buffer);
+            }
+        }
+
+        /**
+         * Check the HTTP response status of a range request, which has to be a
+         * 206 for the same entity as the other segments.
+         */
+        private void handleSegmentStatus(DownloadTransport.Response response)
+                throws StopRequest, RetryDownload {
+            int statusCode = response.getStatusCode();
+            synchronized (mState) {
+                if (isTransientServerError(statusCode)
+                        && RetryPolicy.canRetry(mInfo, RetryPolicy.CLASS_SERVER)) {
+                    handleServiceUnavailable(mState, response, statusCode);
+                }
+                if (statusCode == 301 || statusCode == 302 || statusCode == 303
+                        || statusCode == 307) {
+                    if (mRedirectCount >= Constants.MAX_REDIRECTS) {
+                        throw new StopRequest(DownloaderService.STATUS_TOO_MANY_REDIRECTS,
+                                "too many redirects");
+                    }
+                    String newUri = resolveRedirect(mRequestUri, response, statusCode);
+                    if (newUri != null) {
+                        ++mRedirectCount;
+                        followRedirect(mState, newUri, statusCode);
+                    }
+                }
+                if (statusCode == DownloaderService.STATUS_SUCCESS) {
+                    mSegState.mRangesUnsupported = true;
+                    throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
+                            "server ignored range request");
+                }
+                if (statusCode != 206) {
+                    handleOtherStatus(mState, mInnerState, statusCode);
+                }
+            }
+            // no longer redirected
+            mRedirectCount = 0;
+
+            String etag = response.getFirstHeader("ETag");
+            if (etag != null) {
+                synchronized (mInfo) {
+                    if (!hasETag()) {
+                        mInfo.mETag = etag;
+                        mDB.updateDownload(mInfo);
+                    } else if (!mInfo.mETag.equals(etag)) {
+                        throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
+                                "file changed on server while downloading segments");
+                    }
+                }
+            }
+        }
+
+        private void transferSegmentData(ReadableByteChannel source, ByteBuffer buffer,
+                long position) throws StopRequest {
+            ChunkSizer sizer = new ChunkSizer();
+            for (;;) {
+                long remaining = mSegment.getLength() - mSegment.mCurrentBytes;
+                if (mSegState.mAborted) {
+                    return;
+                }
+                if (remaining <= 0) {
+                    // reach the end of the body, so that the connection is
+                    // released for reuse rather than closed
+                    buffer.clear();
+                    readFromSegment(source, buffer);
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(sizer.getChunkSize(), remaining));
+                int bytesRead = readFromSegment(source, buffer);
+                if (bytesRead == -1) {
+                    persistSegmentProgress(mSegState);
+                    throw new StopRequest(getFinalStatusForHttpError(mState),
+                            "closed socket before end of segment");
+                }
+
+                mState.mGotData = true;
+                mService.getBandwidthLimiter().acquire(bytesRead);
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        position += mSegState.mChannel.write(buffer, position);
+                    }
+                } catch (IOException ex) {
+                    throw getStopRequestForWriteError(mState, bytesRead, ex);
+                }
+                sizer.onTransferred(bytesRead, System.currentTimeMillis());
+                buffer.flip();
+                reportSegmentProgress(mState, mSegState, mSegment, buffer);
+
+                checkPausedOrCanceled(mState);
+            }
+        }
+
+        private int readFromSegment(ReadableByteChannel source, ByteBuffer buffer)
+                throws StopRequest {
+            long readStart = System.currentTimeMillis();
+            try {
+                int bytesRead = source.read(buffer);
+                recordRead(mInnerState, readStart, bytesRead);
+                return bytesRead;
+            } catch (IOException ex) {
+                if (mSegState.mAborted) {
+                    return -1;
+                }
+                logNetworkState();
+                persistSegmentProgress(mSegState);
+                synchronized (mInfo) {
+                    if (!hasETag()) {
+                        throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
+                                "while reading segment: " + ex.toString()
+                                        + ", can't resume interrupted download with no ETag",
+                                ex);
+                    }
+                }
+                throw new StopRequest(getFinalStatusForHttpError(mState),
+                        "while reading segment: " + ex.toString(), ex);
+            }
+        }
+    }
+
+    /**
+     * Account for data written by a segment worker and report the progress
+     * of the whole download through the database if necessary.
+     *
+     * @param written the data that was written, between position and limit
+     */
+    private void reportSegmentProgress(State state, SegmentedState segState,
+            DownloadSegment segment, ByteBuffer written) {
+        int bytesWritten = written.remaining();
+        synchronized (segState) {
+            // hashed under the lock so the checksum and byte count of the
+            // segment are always stored together
+            segment.mChecksum.update(written);
+            segment.mCurrentBytes += bytesWritten;
+            segState.mBytesSoFar += bytesWritten;
+            segState.mBytesThisSession += bytesWritten;
+
+            long now = System.currentTimeMillis();
+            if (segState.mBytesSoFar - segState.mBytesCheckpointed
+                    > Constants.MIN_CHECKPOINT_STEP
+                    && now - segState.mTimeLastCheckpoint
+                    > Constants.MIN_CHECKPOINT_TIME) {
+                // we store progress updates to the database here
+                persistSegmentProgress(segState);
+            }
+            if (segState.mBytesSoFar - segState.mBytesNotified
+                    > Constants.MIN_PROGRESS_STEP
+                    && now - segState.mTimeLastNotification
+                    > Constants.MIN_PROGRESS_TIME) {
+                segState.mBytesNotified = segState.mBytesSoFar;
+                segState.mTimeLastNotification = now;
+
+                long totalBytesSoFar = mService.updateSessionBytes(mInfo,
+                        segState.mBytesThisSession);
+
+                if (Constants.LOGVV) {
+                    Log.v(Constants.TAG, "downloaded " + mInfo.mCurrentBytes + " out of "
+                            + mInfo.mTotalBytes + " in segments");
+                }
+
+                mService.notifyUpdateBytes(totalBytesSoFar);
+            }
         }
     }
 
@@ -362,6 +1347,7 @@ public class DownloadThread {
      */
     private void finalizeDestinationFile(State state) throws StopRequest {
         syncDestination(state);
+        closeDestination(state);
         String tempFilename = state.mFilename;
         String finalFilename = Helpers.generateSaveFileName(mService, mInfo.mFileName);
         if (!state.mFilename.equals(finalFilename)) {
@@ -377,6 +1363,8 @@ public class DownloadThread {
                         "file delivered with incorrect size. probably due to network not browser configured");
             }
         }
+        // lets the next start trust the checksum without reading the file
+        mInfo.mFileMTime = new File(finalFilename).lastModified();
     }
 
     /**
@@ -385,8 +1373,13 @@ public class DownloadThread {
      */
     private void cleanupDestination(State state, int finalStatus) {
         closeDestination(state);
+        if (DownloaderService.isStatusCompleted(finalStatus)) {
+            mDB.deleteSegments(mInfo);
+        }
         if (state.mFilename != null && DownloaderService.isStatusError(finalStatus)) {
-            new File(state.mFilename).delete();
+            if (new File(state.mFilename).delete()) {
+                mMetrics.recordWastedBytes(mInfo.mCurrentBytes);
+            }
             state.mFilename = null;
         }
     }
@@ -395,22 +1388,24 @@ public class DownloadThread {
      * Sync the destination file to storage.
      */
     private void syncDestination(State state) {
-        FileOutputStream downloadedFileStream = null;
+        RandomAccessFile downloadedFile = null;
         try {
-            downloadedFileStream = new FileOutputStream(state.mFilename, true);
-            downloadedFileStream.getFD().sync();
+            if (state.mChannel != null) {
+                state.mChannel.force(true);
+                return;
+            }
+            downloadedFile = new RandomAccessFile(state.mFilename, "rw");
+            downloadedFile.getFD().sync();
         } catch (FileNotFoundException ex) {
             Log.w(Constants.TAG, "file " + state.mFilename + " not found: " + ex);
-        } catch (SyncFailedException ex) {
-            Log.w(Constants.TAG, "file " + state.mFilename + " sync failed: " + ex);
         } catch (IOException ex) {
             Log.w(Constants.TAG, "IOException trying to sync " + state.mFilename + ": " + ex);
         } catch (RuntimeException ex) {
             Log.w(Constants.TAG, "exception while syncing file: ", ex);
         } finally {
-            if (downloadedFileStream != null) {
+            if (downloadedFile != null) {
                 try {
-                    downloadedFileStream.close();
+                    downloadedFile.close();
                 } catch (IOException ex) {
                     Log.w(Constants.TAG, "IOException while closing synced file: ", ex);
                 } catch (RuntimeException ex) {
@@ -421,20 +1416,35 @@ public class DownloadThread {
     }
 
     /**
-     * Close the destination output stream.
+     * Open the destination file, keeping it open for the rest of the
+     * transfer. Writes continue at the end of the file unless truncate is set.
+     */
+    private void openDestination(State state, boolean truncate) throws IOException {
+        state.mFile = new RandomAccessFile(state.mFilename, "rw");
+        if (truncate) {
+            state.mFile.setLength(0);
+        }
+        state.mChannel = state.mFile.getChannel();
+        state.mChannel.position(state.mFile.length());
+    }
+
+    /**
+     * Close the destination file.
      */
     private void closeDestination(State state) {
         try {
             // close the file
-            if (state.mStream != null) {
-                state.mStream.close();
-                state.mStream = null;
+            if (state.mFile != null) {
+                state.mFile.close();
             }
         } catch (IOException ex) {
             if (Constants.LOGV) {
                 Log.v(Constants.TAG, "exception when closing the file after download : " + ex);
             }
             // nothing can really be done if the file can't be closed
+        } finally {
+            state.mFile = null;
+            state.mChannel = null;
         }
     }
 
@@ -456,82 +1466,127 @@ public class DownloadThread {
     /**
      * Report download progress through the database if necessary.
      */
-    private void reportProgress(State state, InnerState innerState) {
+    private void reportProgress(State state, TransferState innerState) {
         long now = System.currentTimeMillis();
-        if (innerState.mBytesSoFar - innerState.mBytesNotified
-                > Constants.MIN_PROGRESS_STEP
-                && now - innerState.mTimeLastNotification
-                > Constants.MIN_PROGRESS_TIME) {
+        if (innerState.isCheckpointDue(now)) {
             // we store progress updates to the database here
-            mInfo.mCurrentBytes = innerState.mBytesSoFar;
-            mDB.updateDownloadCurrentBytes(mInfo);
+            checkpointDestination(state, innerState);
+        }
+        notifyProgress(innerState, now);
+    }
 
-            innerState.mBytesNotified = innerState.mBytesSoFar;
-            innerState.mTimeLastNotification = now;
+    /**
+     * Report download progress to the service if enough has changed since the
+     * last report.
+     */
+    private void notifyProgress(TransferState innerState, long now) {
+        if (innerState.isNotificationDue(now)) {
+            innerState.notified(now);
 
-            long totalBytesSoFar = innerState.mBytesThisSession + mService.mBytesSoFar;
+            long totalBytesSoFar = mService.updateSessionBytes(mInfo,
+                    innerState.mBytesThisSession);
 
             if (Constants.LOGVV) {
                 Log.v(Constants.TAG, "downloaded " + mInfo.mCurrentBytes + " out of "
                         + mInfo.mTotalBytes);
                 Log.v(Constants.TAG, "     total " + totalBytesSoFar + " out of "
-                        + mService.mTotalLength);
+                        + mService.getTotalLength());
             }
 
             mService.notifyUpdateBytes(totalBytesSoFar);
         }
     }
 
+    /**
+     * Sync what has been written so far and then store the progress in the
+     * database, so a resume never starts past the data that is on disk.
+     */
+    private void checkpointDestination(State state, TransferState innerState) {
+        if (state.mChannel != null) {
+            try {
+                state.mChannel.force(false);
+            } catch (IOException ex) {
+                Log.w(Constants.TAG, "IOException trying to sync " + state.mFilename + ": " + ex);
+                return;
+            }
+        }
+        setCurrentBytes(innerState);
+        mDB.journalDownloadCurrentBytes(mInfo);
+        innerState.checkpointed(System.currentTimeMillis());
+    }
+
+    /**
+     * Copy the progress of a single-stream transfer to mInfo, keeping the
+     * checksum in step with the byte count.
+     */
+    private void setCurrentBytes(TransferState innerState) {
+        mInfo.mCurrentBytes = innerState.mBytesSoFar;
+        if (null != innerState.mChecksum) {
+            innerState.mChecksum.checkpoint();
+            mInfo.mCrc32 = innerState.mChecksum.getValue();
+        } else {
+            mInfo.mCrc32 = StreamingChecksum.UNKNOWN;
+        }
+    }
+
     /**
      * Write a data buffer to the destination file.
      * 
-     * @param data buffer containing the data to write
-     * @param bytesRead how many bytes to write from the buffer
+     * @param buffer buffer containing the data to write, between its
+     *            position and limit
+     * @param bytesRead how many bytes are in the buffer
      */
-    private void writeDataToDestination(State state, byte[] data, int bytesRead)
+    private void writeDataToDestination(State state, ByteBuffer buffer, int bytesRead)
             throws StopRequest {
         for (;;) {
             try {
-                if (state.mStream == null) {
-                    state.mStream = new FileOutputStream(state.mFilename, true);
+                if (state.mChannel == null) {
+                    openDestination(state, false);
+                }
+                while (buffer.hasRemaining()) {
+                    state.mChannel.write(buffer);
                 }
-                state.mStream.write(data, 0, bytesRead);
-                // we close after every write --- this may be too inefficient
-                closeDestination(state);
                 return;
             } catch (IOException ex) {
-                if (!Helpers.isExternalMediaMounted()) {
-                    throw new StopRequest(DownloaderService.STATUS_DEVICE_NOT_FOUND_ERROR,
-                            "external media not mounted while writing destination file");
-                }
-
-                long availableBytes =
-                        Helpers.getAvailableBytes(Helpers.getFilesystemRoot(state.mFilename));
-                if (availableBytes < bytesRead) {
-                    throw new StopRequest(DownloaderService.STATUS_INSUFFICIENT_SPACE_ERROR,
-                            "insufficient space while writing destination file", ex);
-                }
-                throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
-                        "while writing destination file: " + ex.toString(), ex);
+                throw getStopRequestForWriteError(state, bytesRead, ex);
             }
         }
     }
 
+    /**
+     * Works out why a write to the destination file failed.
+     */
+    private StopRequest getStopRequestForWriteError(State state, int bytesRead,
+            IOException ex) {
+        if (!Helpers.isExternalMediaMounted()) {
+            return new StopRequest(DownloaderService.STATUS_DEVICE_NOT_FOUND_ERROR,
+                    "external media not mounted while writing destination file");
+        }
+
+        long availableBytes =
+                Helpers.getAvailableBytes(Helpers.getFilesystemRoot(state.mFilename));
+        if (availableBytes < bytesRead) {
+            return new StopRequest(DownloaderService.STATUS_INSUFFICIENT_SPACE_ERROR,
+                    "insufficient space while writing destination file", ex);
+        }
+        return new StopRequest(DownloaderService.STATUS_FILE_ERROR,
+                "while writing destination file: " + ex.toString(), ex);
+    }
+
     /**
      * Called when we've reached the end of the HTTP response stream, to update
      * the database and check for consistency.
      */
-    private void handleEndOfStream(State state, InnerState innerState) throws StopRequest {
-        mInfo.mCurrentBytes = innerState.mBytesSoFar;
+    private void handleEndOfStream(State state, TransferState innerState) throws StopRequest {
+        syncDestination(state);
+        setCurrentBytes(innerState);
         // this should always be set from the market
         // if ( innerState.mHeaderContentLength == null ) {
         // mInfo.mTotalBytes = innerState.mBytesSoFar;
         // }
         mDB.updateDownload(mInfo);
 
-        boolean lengthMismatched = (innerState.mHeaderContentLength != null)
-                && (innerState.mBytesSoFar != Integer.parseInt(innerState.mHeaderContentLength));
-        if (lengthMismatched) {
+        if (innerState.isLengthMismatched()) {
             if (cannotResume(innerState)) {
                 throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
                         "mismatched content length");
@@ -542,47 +1597,76 @@ public class DownloadThread {
         }
     }
 
-    private boolean cannotResume(InnerState innerState) {
+    private boolean cannotResume(TransferState innerState) {
         return innerState.mBytesSoFar > 0 && innerState.mHeaderETag == null;
     }
 
     /**
      * Read some data from the HTTP response stream, handling I/O errors.
      * 
-     * @param data buffer to use to read data
-     * @param entityStream stream for reading the HTTP response entity
+     * @param buffer buffer to read data into, up to its limit
+     * @param source channel for reading the HTTP response entity
      * @return the number of bytes actually read or -1 if the end of the stream
      *         has been reached
      */
-    private int readFromResponse(State state, InnerState innerState, byte[] data,
-            InputStream entityStream) throws StopRequest {
+    private int readFromResponse(State state, TransferState innerState, ByteBuffer buffer,
+            ReadableByteChannel source) throws StopRequest {
+        long readStart = System.currentTimeMillis();
+        int bytesRead;
         try {
-            return entityStream.read(data);
+            bytesRead = source.read(buffer);
         } catch (IOException ex) {
-            logNetworkState();
-            mInfo.mCurrentBytes = innerState.mBytesSoFar;
-            mDB.updateDownload(mInfo);
-            if (cannotResume(innerState)) {
-                String message = "while reading response: " + ex.toString()
-                        + ", can't resume interrupted download with no ETag";
-                throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
-                        message, ex);
-            } else {
-                throw new StopRequest(getFinalStatusForHttpError(state),
-                        "while reading response: " + ex.toString(), ex);
-            }
+            throw getStopRequestForReadError(state, innerState, ex);
         }
+        recordRead(innerState, readStart, bytesRead);
+        return bytesRead;
     }
 
     /**
-     * Open a stream for the HTTP response entity, handling I/O errors.
+     * Record how long a read from a response body blocked, and the time to
+     * first byte of the response if this read got it.
      * 
-     * @return an InputStream to read the response entity
+     * @param readStart when the read started, in ms
      */
-    private InputStream openResponseEntity(State state, HttpResponse response)
-            throws StopRequest {
+    private void recordRead(TransferState innerState, long readStart, int bytesRead) {
+        long now = System.currentTimeMillis();
+        mMetrics.recordReadTime(now - readStart);
+        if (bytesRead > 0 && 0 != innerState.mTimeRequestSent) {
+            mMetrics.recordTimeToFirstByte(now - innerState.mTimeRequestSent);
+            innerState.mTimeRequestSent = 0;
+        }
+    }
+
+    /**
+     * Store the progress made before a failed read from the HTTP response,
+     * and return the request to stop the download with.
+     */
+    private StopRequest getStopRequestForReadError(State state, TransferState innerState,
+            IOException ex) {
+        logNetworkState();
+        syncDestination(state);
+        setCurrentBytes(innerState);
+        mDB.updateDownload(mInfo);
+        if (cannotResume(innerState)) {
+            String message = "while reading response: " + ex.toString()
+                    + ", can't resume interrupted download with no ETag";
+            return new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
+                    message, ex);
+        } else {
+            return new StopRequest(getFinalStatusForHttpError(state),
+                    "while reading response: " + ex.toString(), ex);
+        }
+    }
+
+    /**
+     * Open a channel for the HTTP response entity, handling I/O errors.
+     * 
+     * @return a channel to read the response entity
+     */
+    private ReadableByteChannel openResponseEntity(State state,
+            DownloadTransport.Response response) throws StopRequest {
         try {
-            return response.getEntity().getContent();
+            return response.getBody();
         } catch (IOException ex) {
             logNetworkState();
             throw new StopRequest(getFinalStatusForHttpError(state),
@@ -599,16 +1683,50 @@ public class DownloadThread {
         }
     }
 
+    /**
+     * Returns the checksum to continue a resumed download with: the stored
+     * one, extended over the data that was written after the last
+     * checkpoint. Returns null if the stored checksum does not describe the
+     * start of the file.
+     */
+    private StreamingChecksum resumeChecksum(State state, long fileLength) {
+        if (mInfo.mCrc32 == StreamingChecksum.UNKNOWN || mInfo.mCurrentBytes > fileLength) {
+            return null;
+        }
+        StreamingChecksum checksum = new StreamingChecksum(mInfo.mCrc32, mInfo.mCurrentBytes);
+        ByteBuffer buffer = BufferPool.getInstance().acquire();
+        try {
+            long position = mInfo.mCurrentBytes;
+            while (position < fileLength) {
+                buffer.clear();
+                int bytesRead = state.mChannel.read(buffer, position);
+                if (bytesRead == -1) {
+                    return null;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += bytesRead;
+            }
+            return checksum;
+        } catch (IOException ex) {
+            Log.w(Constants.TAG, "IOException while checksumming " + state.mFilename + ": " + ex);
+            return null;
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
     /**
      * Read HTTP response headers and take appropriate action, including setting
      * up the destination file and updating the database.
      */
-    private void processResponseHeaders(State state, InnerState innerState, HttpResponse response)
-            throws StopRequest {
+    private void processResponseHeaders(State state, TransferState innerState,
+            DownloadTransport.Response response) throws StopRequest {
         if (innerState.mContinuingDownload) {
             // ignore response headers on resume requests
             return;
         }
+        innerState.mChecksum = new StreamingChecksum(0, 0);
 
         readResponseHeaders(state, innerState, response);
 
@@ -618,18 +1736,21 @@ public class DownloadThread {
             throw new StopRequest(exc.mStatus, exc.mMessage);
         }
         try {
-            state.mStream = new FileOutputStream(state.mFilename);
+            openDestination(state, true);
         } catch (FileNotFoundException exc) {
             // make sure the directory exists
             File pathFile = new File(Helpers.getSaveFilePath(mService));
             try {
                 if (pathFile.mkdirs()) {
-                    state.mStream = new FileOutputStream(state.mFilename);
+                    openDestination(state, true);
                 }
             } catch (Exception ex) {
                 throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
                         "while opening destination file: " + exc.toString(), exc);
             }
+        } catch (IOException exc) {
+            throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
+                    "while opening destination file: " + exc.toString(), exc);
         }
         if (Constants.LOGV) {
             Log.v(Constants.TAG, "writing " + mInfo.mUri + " to " + state.mFilename);
@@ -644,7 +1765,7 @@ public class DownloadThread {
      * Update necessary database fields based on values of HTTP response headers
      * that have been read.
      */
-    private void updateDatabaseFromHeaders(State state, InnerState innerState) {
+    private void updateDatabaseFromHeaders(State state, TransferState innerState) {
         mInfo.mETag = innerState.mHeaderETag;
         mDB.updateDownload(mInfo);
     }
@@ -652,29 +1773,23 @@ public class DownloadThread {
     /**
      * Read headers from the HTTP response and store them into local state.
      */
-    private void readResponseHeaders(State state, InnerState innerState, HttpResponse response)
-            throws StopRequest {
-        Header header = response.getFirstHeader("Content-Disposition");
+    private void readResponseHeaders(State state, TransferState innerState,
+            DownloadTransport.Response response) throws StopRequest {
+        String header = response.getFirstHeader("Content-Disposition");
         if (header != null) {
-            innerState.mHeaderContentDisposition = header.getValue();
+            innerState.mHeaderContentDisposition = header;
         }
         header = response.getFirstHeader("Content-Location");
         if (header != null) {
-            innerState.mHeaderContentLocation = header.getValue();
+            innerState.mHeaderContentLocation = header;
         }
         header = response.getFirstHeader("ETag");
         if (header != null) {
-            innerState.mHeaderETag = header.getValue();
+            innerState.mHeaderETag = header;
         }
-        String headerTransferEncoding = null;
-        header = response.getFirstHeader("Transfer-Encoding");
-        if (header != null) {
-            headerTransferEncoding = header.getValue();
-        }
-        String headerContentType = null;
-        header = response.getFirstHeader("Content-Type");
-        if (header != null) {
-            headerContentType = header.getValue();
+        String headerTransferEncoding = response.getFirstHeader("Transfer-Encoding");
+        String headerContentType = response.getFirstHeader("Content-Type");
+        if (headerContentType != null) {
             if (!headerContentType.equals("application/vnd.android.obb")) {
                 throw new StopRequest(DownloaderService.STATUS_FILE_DELIVERED_INCORRECTLY,
                         "file delivered with incorrect Mime type");
@@ -684,9 +1799,9 @@ public class DownloadThread {
         if (headerTransferEncoding == null) {
             header = response.getFirstHeader("Content-Length");
             if (header != null) {
-                innerState.mHeaderContentLength = header.getValue();
+                innerState.mHeaderContentLength = header;
                 // this is always set from Market
-                long contentLength = Long.parseLong(innerState.mHeaderContentLength);
+                long contentLength = innerState.getContentLength();
                 if (contentLength != -1 && contentLength != mInfo.mTotalBytes) {
                     // we're most likely on a bad wifi connection -- we should
                     // probably
@@ -725,11 +1840,12 @@ public class DownloadThread {
      * Check the HTTP response status and handle anything unusual (e.g. not
      * 200/206).
      */
-    private void handleExceptionalStatus(State state, InnerState innerState, HttpResponse response)
-            throws StopRequest, RetryDownload {
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode == 503 && mInfo.mNumFailed < Constants.MAX_RETRIES) {
-            handleServiceUnavailable(state, response);
+    private void handleExceptionalStatus(State state, TransferState innerState,
+            DownloadTransport.Response response) throws StopRequest, RetryDownload {
+        int statusCode = response.getStatusCode();
+        if (isTransientServerError(statusCode)
+                && RetryPolicy.canRetry(mInfo, RetryPolicy.CLASS_SERVER)) {
+            handleServiceUnavailable(state, response, statusCode);
         }
         if (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307) {
             handleRedirect(state, response, statusCode);
@@ -748,7 +1864,7 @@ public class DownloadThread {
     /**
      * Handle a status that we don't know how to deal with properly.
      */
-    private void handleOtherStatus(State state, InnerState innerState, int statusCode)
+    private void handleOtherStatus(State state, TransferState innerState, int statusCode)
             throws StopRequest {
         int finalStatus;
         if (DownloaderService.isStatusError(statusCode)) {
@@ -766,34 +1882,53 @@ public class DownloadThread {
     /**
      * Handle a 3xx redirect status.
      */
-    private void handleRedirect(State state, HttpResponse response, int statusCode)
-            throws StopRequest, RetryDownload {
-        if (Constants.LOGVV) {
-            Log.v(Constants.TAG, "got HTTP redirect " + statusCode);
-        }
+    private void handleRedirect(State state, DownloadTransport.Response response,
+            int statusCode) throws StopRequest, RetryDownload {
         if (state.mRedirectCount >= Constants.MAX_REDIRECTS) {
             throw new StopRequest(DownloaderService.STATUS_TOO_MANY_REDIRECTS, "too many redirects");
         }
-        Header header = response.getFirstHeader("Location");
-        if (header == null) {
+        String newUri = resolveRedirect(state.mRequestUri, response, statusCode);
+        if (newUri == null) {
             return;
         }
+        ++state.mRedirectCount;
+        followRedirect(state, newUri, statusCode);
+    }
+
+    /**
+     * Returns the target of a 3xx redirect, resolved against the URI that was
+     * requested, or null if the response has no Location.
+     */
+    private String resolveRedirect(String requestUri, DownloadTransport.Response response,
+            int statusCode) throws StopRequest {
+        if (Constants.LOGVV) {
+            Log.v(Constants.TAG, "got HTTP redirect " + statusCode);
+        }
+        String location = response.getFirstHeader("Location");
+        if (location == null) {
+            return null;
+        }
         if (Constants.LOGVV) {
-            Log.v(Constants.TAG, "Location :" + header.getValue());
+            Log.v(Constants.TAG, "Location :" + location);
         }
 
-        String newUri;
         try {
-            newUri = new URI(mInfo.mUri).resolve(new URI(header.getValue())).toString();
+            return new URI(requestUri).resolve(new URI(location)).toString();
         } catch (URISyntaxException ex) {
             if (Constants.LOGV) {
-                Log.d(Constants.TAG, "Couldn't resolve redirect URI " + header.getValue()
-                        + " for " + mInfo.mUri);
+                Log.d(Constants.TAG, "Couldn't resolve redirect URI " + location
+                        + " for " + requestUri);
             }
             throw new StopRequest(DownloaderService.STATUS_HTTP_DATA_ERROR,
                     "Couldn't resolve redirect URI");
         }
-        ++state.mRedirectCount;
+    }
+
+    /**
+     * Makes the target of a redirect the URI to request, and retries.
+     */
+    private void followRedirect(State state, String newUri, int statusCode)
+            throws RetryDownload {
         state.mRequestUri = newUri;
         if (statusCode == 301 || statusCode == 303) {
             // use the new URI for all future requests (should a retry/resume be
@@ -806,57 +1941,54 @@ public class DownloadThread {
     /**
      * Add headers for this download to the HTTP request to allow for resume.
      */
-    private void addRequestHeaders(InnerState innerState, HttpGet request) {
+    private void addRequestHeaders(TransferState innerState, DownloadTransport.Request request) {
         if (innerState.mContinuingDownload) {
             if (innerState.mHeaderETag != null) {
                 request.addHeader("If-Match", innerState.mHeaderETag);
             }
-            request.addHeader("Range", "bytes=" + innerState.mBytesSoFar + "-");
+            request.addHeader("Range", innerState.getRangeHeader());
         }
     }
 
     /**
-     * Handle a 503 Service Unavailable status by processing the Retry-After
-     * header.
+     * Returns true for the server errors that are likely to go away by
+     * themselves.
      */
-    private void handleServiceUnavailable(State state, HttpResponse response) throws StopRequest {
+    private static boolean isTransientServerError(int statusCode) {
+        return statusCode == 500 || statusCode == 502 || statusCode == 503
+                || statusCode == 504;
+    }
+
+    /**
+     * Handle a temporary server error such as 503 Service Unavailable by
+     * processing the Retry-After header.
+     */
+    private void handleServiceUnavailable(State state, DownloadTransport.Response response,
+            int statusCode) throws StopRequest {
         if (Constants.LOGVV) {
-            Log.v(Constants.TAG, "got HTTP response code 503");
+            Log.v(Constants.TAG, "got HTTP response code " + statusCode);
         }
-        state.mCountRetry = true;
-        Header header = response.getFirstHeader("Retry-After");
-        if (header != null) {
-            try {
-                if (Constants.LOGVV) {
-                    Log.v(Constants.TAG, "Retry-After :" + header.getValue());
-                }
-                state.mRetryAfter = Integer.parseInt(header.getValue());
-                if (state.mRetryAfter < 0) {
-                    state.mRetryAfter = 0;
-                } else {
-                    if (state.mRetryAfter < Constants.MIN_RETRY_AFTER) {
-                        state.mRetryAfter = Constants.MIN_RETRY_AFTER;
-                    } else if (state.mRetryAfter > Constants.MAX_RETRY_AFTER) {
-                        state.mRetryAfter = Constants.MAX_RETRY_AFTER;
-                    }
-                    state.mRetryAfter += Helpers.sRandom.nextInt(Constants.MIN_RETRY_AFTER + 1);
-                    state.mRetryAfter *= 1000;
-                }
-            } catch (NumberFormatException ex) {
-                // ignored - retryAfter stays 0 in this case.
+        state.mRetryClass = RetryPolicy.CLASS_SERVER;
+        String retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            if (Constants.LOGVV) {
+                Log.v(Constants.TAG, "Retry-After :" + retryAfter);
             }
+            state.mRetryAfter = RetryPolicy.parseRetryAfter(retryAfter,
+                    System.currentTimeMillis());
         }
         throw new StopRequest(DownloaderService.STATUS_WAITING_TO_RETRY,
-                "got 503 Service Unavailable, will retry later");
+                "got " + statusCode + " from server, will retry later");
     }
 
     /**
      * Send the request to the server, handling any I/O exceptions.
      */
-    private HttpResponse sendRequest(State state, AndroidHttpClient client, HttpGet request)
-            throws StopRequest {
+    private DownloadTransport.Response sendRequest(State state,
+            DownloadTransport.Request request) throws StopRequest {
         try {
-            return client.execute(request);
+            // the proxy may have changed since the last request
+            return request.execute(getPreferredProxy(mContext, state.mRequestUri));
         } catch (IllegalArgumentException ex) {
             throw new StopRequest(DownloaderService.STATUS_HTTP_DATA_ERROR,
                     "while trying to execute request: " + ex.toString(), ex);
@@ -870,8 +2002,8 @@ public class DownloadThread {
     private int getFinalStatusForHttpError(State state) {
         if (mService.getNetworkAvailabilityState(mDB) != DownloaderService.NETWORK_OK) {
             return DownloaderService.STATUS_WAITING_FOR_NETWORK;
-        } else if (mInfo.mNumFailed < Constants.MAX_RETRIES) {
-            state.mCountRetry = true;
+        } else if (RetryPolicy.canRetry(mInfo, RetryPolicy.CLASS_NETWORK)) {
+            state.mRetryClass = RetryPolicy.CLASS_NETWORK;
             return DownloaderService.STATUS_WAITING_TO_RETRY;
         } else {
             Log.w(Constants.TAG, "reached max retries for " + mInfo.mNumFailed);
@@ -883,7 +2015,7 @@ public class DownloadThread {
      * Prepare the destination file to receive data. If the file already exists,
      * we'll set up appropriately for resumption.
      */
-    private void setupDestinationFile(State state, InnerState innerState)
+    private void setupDestinationFile(State state, TransferState innerState)
             throws StopRequest {
         if (state.mFilename != null) { // only true if we've already run a
                                        // thread for this download
@@ -904,29 +2036,22 @@ public class DownloadThread {
                 } else if (mInfo.mETag == null) {
                     // This should've been caught upon failure
                     f.delete();
+                    mMetrics.recordWastedBytes(fileLength);
                     throw new StopRequest(DownloaderService.STATUS_CANNOT_RESUME,
                             "Trying to resume a download that can't be resumed");
                 } else {
                     // All right, we'll be able to resume this download
                     try {
-                        state.mStream = new FileOutputStream(state.mFilename, true);
-                    } catch (FileNotFoundException exc) {
+                        openDestination(state, false);
+                    } catch (IOException exc) {
                         throw new StopRequest(DownloaderService.STATUS_FILE_ERROR,
                                 "while opening destination for resuming: " + exc.toString(), exc);
                     }
-                    innerState.mBytesSoFar = (int) fileLength;
-                    if (mInfo.mTotalBytes != -1) {
-                        innerState.mHeaderContentLength = Long.toString(mInfo.mTotalBytes);
-                    }
-                    innerState.mHeaderETag = mInfo.mETag;
-                    innerState.mContinuingDownload = true;
+                    innerState.resume(fileLength, mInfo.mTotalBytes, mInfo.mETag);
+                    innerState.mChecksum = resumeChecksum(state, fileLength);
                 }
             }
         }
-
-        if (state.mStream != null) {
-            closeDestination(state);
-        }
     }
 
     /**
@@ -934,30 +2059,27 @@ public class DownloadThread {
      * initiating application.
      */
     private void notifyDownloadCompleted(
-            int status, boolean countRetry, int retryAfter, int redirectCount, boolean gotData,
+            int status, int retryClass, long retryAfter, int redirectCount, boolean gotData,
             String filename) {
         updateDownloadDatabase(
-                status, countRetry, retryAfter, redirectCount, gotData, filename);
+                status, retryClass, retryAfter, redirectCount, gotData, filename);
         if (DownloaderService.isStatusCompleted(status)) {
             // TBD: send status update?
         }
     }
 
     private void updateDownloadDatabase(
-            int status, boolean countRetry, int retryAfter, int redirectCount, boolean gotData,
+            int status, int retryClass, long retryAfter, int redirectCount, boolean gotData,
             String filename) {
         mInfo.mStatus = status;
-        mInfo.mRetryAfter = retryAfter;
         mInfo.mRedirectCount = redirectCount;
         mInfo.mLastMod = System.currentTimeMillis();
-        if (!countRetry) {
-            mInfo.mNumFailed = 0;
-        } else if (gotData) {
-            mInfo.mNumFailed = 1;
-        } else {
-            mInfo.mNumFailed++;
+        if (status != DownloaderService.STATUS_WAITING_TO_RETRY) {
+            retryClass = RetryPolicy.CLASS_NONE;
         }
+        RetryPolicy.recordAttempt(mInfo, retryClass, retryAfter, gotData);
         mDB.updateDownload(mInfo);
+        mMetrics.recordOutcome(status);
     }
 
 }
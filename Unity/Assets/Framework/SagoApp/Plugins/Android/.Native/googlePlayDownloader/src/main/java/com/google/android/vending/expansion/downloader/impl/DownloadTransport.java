@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The HTTP client the download threads send their requests through. One
+ * transport is shared by all threads of the service, so implementations
+ * must be thread-safe and should keep connections alive between requests.
+ */
+public interface DownloadTransport {
+
+    /**
+     * A GET request. A request is sent once; it may be aborted from another
+     * thread at any time.
+     */
+    public interface Request {
+        void addHeader(String name, String value);
+
+        /**
+         * Sends the request and reads the response status and headers.
+         *
+         * @param proxy the proxy to connect through, or {@link Proxy#NO_PROXY}
+         * @throws IllegalArgumentException if the URI of the request is invalid
+         * @throws IOException if the request fails or is aborted
+         */
+        Response execute(Proxy proxy) throws IOException;
+
+        /**
+         * Closes the connection of the request, unless its response has been
+         * read completely, in which case the connection is kept for reuse.
+         */
+        void abort();
+    }
+
+    /**
+     * The status and headers of a response, and a channel for its body.
+     */
+    public interface Response {
+        int getStatusCode();
+
+        /**
+         * Returns the value of a header of the response, or null if it does
+         * not have that header.
+         */
+        String getFirstHeader(String name);
+
+        /**
+         * Returns the body of the response. Reading it to the end releases
+         * the connection for the next request.
+         */
+        ReadableByteChannel getBody() throws IOException;
+    }
+
+    Request newRequest(String uri);
+
+    /**
+     * Closes the connections that have not been used for the given time.
+     *
+     * @param idleTime the time a connection may be idle, in ms
+     */
+    void closeIdleConnections(long idleTime);
+
+    /**
+     * Closes all connections. The transport cannot be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+import com.google.android.vending.expansion.downloader.Helpers;
+import com.google.android.vending.expansion.zipfile.ZipIndex;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Confirms that a completed download is still intact, using the CRC32 that
+ * was computed while it was downloaded.
+ */
+public class DownloadVerifier {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Checks a completed download against its stored size and checksum. When
+     * the file has not been modified since the checksum was stored, its size
+     * is enough; otherwise the whole file is read again, and the stored
+     * modification time is refreshed if it still matches.
+     *
+     * @return true if the file is intact, false if it is missing, has the
+     *         wrong size or no longer matches its checksum
+     */
+    public static boolean verify(Context c, DownloadsDB db, DownloadInfo di) {
+        File file = new File(Helpers.generateSaveFileName(c, di.mFileName));
+        if (!file.exists() || file.length() != di.mTotalBytes) {
+            return false;
+        }
+        if (di.mCrc32 == StreamingChecksum.UNKNOWN) {
+            // delivered by Market or downloaded by an older version
+            return true;
+        }
+        long lastModified = file.lastModified();
+        if (lastModified == di.mFileMTime) {
+            return true;
+        }
+        long crc32 = computeCrc32(file);
+        if (crc32 != di.mCrc32) {
+            Log.w(Constants.TAG, "checksum mismatch for " + di.mFileName);
+            return false;
+        }
+        di.mFileMTime = lastModified;
+        db.updateDownload(di);
+        return true;
+    }
+
+    /**
+     * Writes the entry index of a completed download, unless an index that
+     * matches the file already exists. A file that is not a zip file gets no
+     * index, and readers fall back to its central directory.
+     */
+    public static void ensureZipIndex(Context c, DownloadInfo di) {
+        File file = new File(Helpers.generateSaveFileName(c, di.mFileName));
+        File indexFile = ZipIndex.getIndexFile(c, di.mFileName);
+        if (null != ZipIndex.open(file, indexFile, di.mETag)) {
+            return;
+        }
+        try {
+            ZipIndex.write(file, indexFile, di.mETag);
+        } catch (IOException ex) {
+            Log.w(Constants.TAG, "unable to index " + di.mFileName + ": " + ex);
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Returns the CRC32 of a whole file, or {@link StreamingChecksum#UNKNOWN}
+     * if it cannot be read.
+     */
+    public static long computeCrc32(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, bytesRead);
+            }
+            return crc.getValue();
+        } catch (IOException ex) {
+            Log.w(Constants.TAG, "IOException while checksumming " + file + ": " + ex);
+            return StreamingChecksum.UNKNOWN;
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+}
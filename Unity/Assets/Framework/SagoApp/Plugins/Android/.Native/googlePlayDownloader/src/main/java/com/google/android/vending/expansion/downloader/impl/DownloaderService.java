@@ -17,12 +17,12 @@
 package com.google.android.vending.expansion.downloader.impl;
 
 import com.google.android.vending.expansion.downloader.Constants;
-import com.google.android.vending.expansion.downloader.DownloadProgressInfo;
 import com.google.android.vending.expansion.downloader.DownloaderServiceMarshaller;
 import com.google.android.vending.expansion.downloader.Helpers;
 import com.google.android.vending.expansion.downloader.IDownloaderClient;
 import com.google.android.vending.expansion.downloader.IDownloaderService;
 import com.google.android.vending.expansion.downloader.IStub;
+import com.google.android.vending.licensing.AESKeyCache;
 import com.google.android.vending.licensing.AESObfuscator;
 import com.google.android.vending.licensing.APKExpansionPolicy;
 import com.google.android.vending.licensing.LicenseChecker;
@@ -41,7 +41,10 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
 import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Messenger;
@@ -51,6 +54,13 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Performs the background downloads requested by applications that use the
@@ -396,6 +406,16 @@ public abstract class DownloaderService extends CustomIntentService implements I
         return this.mServiceMessenger.getBinder();
     }
 
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // the last client is gone, so stop sending it progress
+        mClientMessenger = null;
+        if (null != mNotification) {
+            mNotification.setMessenger(null);
+        }
+        return super.onUnbind(intent);
+    }
+
     /**
      * Network state.
      */
@@ -429,12 +449,36 @@ public abstract class DownloaderService extends CustomIntentService implements I
     private PackageInfo mPackageInfo;
 
     /**
-     * Byte counts
+     * Byte counts. mBytesSoFar holds the progress of every download when its
+     * current session started (or ended); the bytes of running sessions are
+     * kept per download index in mSessionBytes. Guarded by mProgressLock.
      */
-    long mBytesSoFar;
-    long mTotalLength;
+    private final Object mProgressLock = new Object();
+    private long mBytesSoFar;
+    private long mTotalLength;
+    private final HashMap<Integer, Long> mSessionBytes = new HashMap<Integer, Long>();
     int mFileCount;
 
+    /**
+     * The priority last set by a client. It is kept for the whole process,
+     * so that a service restarted by an alarm keeps to it.
+     */
+    private static volatile int sDownloadPriority = PRIORITY_FOREGROUND;
+
+    /**
+     * Limits the combined bandwidth of all running downloads
+     */
+    private final BandwidthLimiter mBandwidthLimiter =
+            new BandwidthLimiter(getBandwidthForPriority(sDownloadPriority));
+
+    /**
+     * The HTTP transport all download threads borrow connections from, so
+     * that connections and TLS sessions are reused across files, segments,
+     * redirects and retries. Created on first use and shut down with the
+     * service. Guarded by this.
+     */
+    private DownloadTransport mTransport;
+
     /**
      * Used for calculating time remaining and speed
      */
@@ -722,6 +766,17 @@ public abstract class DownloaderService extends CustomIntentService implements I
         DownloadsDB.getDB(this).updateFlags(flags);
     }
 
+    @Override
+    public void setDownloadPriority(int priority) {
+        sDownloadPriority = priority;
+        mBandwidthLimiter.setRate(getBandwidthForPriority(priority));
+    }
+
+    private static long getBandwidthForPriority(int priority) {
+        return priority == PRIORITY_BACKGROUND ? Constants.BACKGROUND_DOWNLOAD_BANDWIDTH
+                : Constants.MAX_DOWNLOAD_BANDWIDTH;
+    }
+
     @Override
     public void requestContinueDownload() {
         if (mControl == CONTROL_PAUSED) {
@@ -738,158 +793,242 @@ public abstract class DownloaderService extends CustomIntentService implements I
 
     public abstract String getAlarmReceiverClassName();
 
-    private class LVLRunnable implements Runnable {
-        LVLRunnable(Context context, PendingIntent intent) {
-            mContext = context;
-            mPendingIntent = intent;
-        }
-
-        final Context mContext;
-
-        @Override
-        public void run() {
-            setServiceRunning(true);
-            mNotification.onDownloadStateChanged(IDownloaderClient.STATE_FETCHING_URL);
-            String deviceId = Secure.getString(mContext.getContentResolver(),
-                    Secure.ANDROID_ID);
-
-            final APKExpansionPolicy aep = new APKExpansionPolicy(mContext,
-                    new AESObfuscator(getSALT(), mContext.getPackageName(), deviceId));
+    /**
+     * Override this to update expansion files with a delta instead of
+     * downloading them in full. When an expansion file changes, the file it
+     * replaces is still on the device; if this returns a URL, the service
+     * downloads a delta in the {@link DeltaPatch} format from it and applies
+     * it to the old file. A delta that is missing or does not apply falls back
+     * to the full download.
+     *
+     * @param baseFileName the name of the expansion file on the device
+     * @param fileName the name of the expansion file to build
+     * @return the URL of a delta from baseFileName to fileName, or null to
+     *         download fileName in full
+     */
+    public String getDeltaURL(String baseFileName, String fileName) {
+        return null;
+    }
 
-            // reset our policy back to the start of the world to force a
-            // re-check
-            aep.resetPolicy();
+    /**
+     * Turn a download into a delta download if the expansion file it replaces
+     * is complete on the device and {@link #getDeltaURL} has a delta for it.
+     *
+     * @param previous the download this one replaces, or null
+     */
+    private void setupDeltaDownload(DownloadInfo previous, DownloadInfo di) {
+        if (null == previous || previous.mStatus != STATUS_SUCCESS
+                || previous.mFileName.equals(di.mFileName)
+                || !Helpers.doesFileExist(this, previous.mFileName, previous.mTotalBytes,
+                        false)) {
+            return;
+        }
+        String deltaUri = getDeltaURL(previous.mFileName, di.mFileName);
+        if (null != deltaUri) {
+            di.mDeltaBase = previous.mFileName;
+            di.mDeltaUri = deltaUri;
+        }
+    }
 
-            // let's try and get the OBB file from LVL first
-            // Construct the LicenseChecker with a Policy.
-            final LicenseChecker checker = new LicenseChecker(mContext, aep,
-                    getPublicKey() // Your public licensing key.
-            );
-            checker.checkAccess(new LicenseCheckerCallback() {
+    private static String getDeviceId(Context c) {
+        return Secure.getString(c.getContentResolver(), Secure.ANDROID_ID);
+    }
 
-                @Override
-                public void allow(int reason) {
-                    try {
-                        int count = aep.getExpansionURLCount();
-                        DownloadsDB db = DownloadsDB.getDB(mContext);
-                        int status = 0;
-                        if (count != 0) {
-                            for (int i = 0; i < count; i++) {
-                                String currentFileName = aep
-                                        .getExpansionFileName(i);
-                                if (null != currentFileName) {
-                                    DownloadInfo di = new DownloadInfo(i,
-                                            currentFileName, mContext.getPackageName());
-
-                                    long fileSize = aep.getExpansionFileSize(i);
-                                    if (handleFileUpdated(db, i, currentFileName,
-                                            fileSize)) {
-                                        status |= -1;
-                                        di.resetDownload();
-                                        di.mUri = aep.getExpansionURL(i);
+    /*
+     * The license checker and its policy, created by the first LVL run and
+     * shared by every run after it in the process, so that overlapping runs
+     * share one request and a run soon after another reuses its binding. They
+     * are not tied to a service instance: the service can stop while a check
+     * is still in progress, and the check has to finish anyway. Only used on
+     * the main thread.
+     */
+    private static APKExpansionPolicy sLicensePolicy;
+    private static LicenseChecker sLicenseChecker;
+
+    /**
+     * Creates the callback that applies the result of an LVL check.
+     *
+     * @param aep the policy holding the expansion files of the response
+     * @param gracePolicy a policy holding the kept license response in its
+     *            grace period, to fall back on if the licensing service
+     *            cannot be reached, or null
+     */
+    private LicenseCheckerCallback newLicenseCallback(final Context context,
+            final APKExpansionPolicy aep, final APKExpansionPolicy gracePolicy) {
+        return new LicenseCheckerCallback() {
+
+            @Override
+            public void allow(int reason) {
+                try {
+                    int count = aep.getExpansionURLCount();
+                    DownloadsDB db = DownloadsDB.getDB(context);
+                    int status = 0;
+                    if (count != 0) {
+                        for (int i = 0; i < count; i++) {
+                            String currentFileName = aep
+                                    .getExpansionFileName(i);
+                            if (null != currentFileName) {
+                                DownloadInfo di = new DownloadInfo(i,
+                                        currentFileName, context.getPackageName());
+
+                                long fileSize = aep.getExpansionFileSize(i);
+                                if (handleFileUpdated(db, i, currentFileName,
+                                        fileSize)) {
+                                    status |= -1;
+                                    di.resetDownload();
+                                    di.mUri = aep.getExpansionURL(i);
+                                    di.mTotalBytes = fileSize;
+                                    di.mStatus = status;
+                                    setupDeltaDownload(db.getDownloadInfoByIndex(i), di);
+                                    db.updateDownload(di);
+                                    db.deleteSegments(di);
+                                } else {
+                                    // we need to read the download
+                                    // information
+                                    // from
+                                    // the database
+                                    DownloadInfo dbdi = db
+                                            .getDownloadInfoByFileName(di.mFileName);
+                                    if (null == dbdi) {
+                                        // the file exists already and is
+                                        // the
+                                        // correct size
+                                        // was delivered by Market or
+                                        // through
+                                        // another mechanism
+                                        Log.d(LOG_TAG, "file " + di.mFileName
+                                                + " found. Not downloading.");
+                                        di.mStatus = STATUS_SUCCESS;
                                         di.mTotalBytes = fileSize;
-                                        di.mStatus = status;
+                                        di.mCurrentBytes = fileSize;
+                                        di.mUri = aep.getExpansionURL(i);
                                         db.updateDownload(di);
-                                    } else {
-                                        // we need to read the download
-                                        // information
-                                        // from
-                                        // the database
-                                        DownloadInfo dbdi = db
-                                                .getDownloadInfoByFileName(di.mFileName);
-                                        if (null == dbdi) {
-                                            // the file exists already and is
-                                            // the
-                                            // correct size
-                                            // was delivered by Market or
-                                            // through
-                                            // another mechanism
-                                            Log.d(LOG_TAG, "file " + di.mFileName
-                                                    + " found. Not downloading.");
-                                            di.mStatus = STATUS_SUCCESS;
-                                            di.mTotalBytes = fileSize;
-                                            di.mCurrentBytes = fileSize;
-                                            di.mUri = aep.getExpansionURL(i);
-                                            db.updateDownload(di);
-                                        } else if (dbdi.mStatus != STATUS_SUCCESS) {
-                                            // we just update the URL
-                                            dbdi.mUri = aep.getExpansionURL(i);
-                                            db.updateDownload(dbdi);
-                                            status |= -1;
-                                        }
+                                    } else if (dbdi.mStatus != STATUS_SUCCESS) {
+                                        // we just update the URL
+                                        dbdi.mUri = aep.getExpansionURL(i);
+                                        db.updateDownload(dbdi);
+                                        status |= -1;
                                     }
                                 }
                             }
                         }
-                        // first: do we need to do an LVL update?
-                        // we begin by getting our APK version from the package
-                        // manager
-                        PackageInfo pi;
-                        try {
-                            pi = mContext.getPackageManager().getPackageInfo(
-                                    mContext.getPackageName(), 0);
-                            db.updateMetadata(pi.versionCode, status);
-                            Class<?> serviceClass = DownloaderService.this.getClass();
-                            switch (startDownloadServiceIfRequired(mContext, mPendingIntent,
-                                    serviceClass)) {
-                                case NO_DOWNLOAD_REQUIRED:
-                                    mNotification
-                                            .onDownloadStateChanged(IDownloaderClient.STATE_COMPLETED);
-                                    break;
-                                case LVL_CHECK_REQUIRED:
-                                    // DANGER WILL ROBINSON!
-                                    Log.e(LOG_TAG, "In LVL checking loop!");
-                                    mNotification
-                                            .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_UNLICENSED);
-                                    throw new RuntimeException(
-                                            "Error with LVL checking and database integrity");
-                                case DOWNLOAD_REQUIRED:
-                                    // do nothing. the download will notify the
-                                    // application
-                                    // when things are done
-                                    break;
-                            }
-                        } catch (NameNotFoundException e1) {
-                            e1.printStackTrace();
-                            throw new RuntimeException(
-                                    "Error with getting information from package name");
-                        }
-                    } finally {
-                        setServiceRunning(false);
                     }
-                }
-
-                @Override
-                public void dontAllow(int reason) {
-                    try
-                    {
-                        switch (reason) {
-                            case Policy.NOT_LICENSED:
+                    // first: do we need to do an LVL update?
+                    // we begin by getting our APK version from the package
+                    // manager
+                    PackageInfo pi;
+                    try {
+                        pi = context.getPackageManager().getPackageInfo(
+                                context.getPackageName(), 0);
+                        db.updateMetadata(pi.versionCode, status);
+                        Class<?> serviceClass = DownloaderService.this.getClass();
+                        switch (startDownloadServiceIfRequired(context, mPendingIntent,
+                                serviceClass)) {
+                            case NO_DOWNLOAD_REQUIRED:
                                 mNotification
-                                        .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_UNLICENSED);
+                                        .onDownloadStateChanged(IDownloaderClient.STATE_COMPLETED);
                                 break;
-                            case Policy.RETRY:
+                            case LVL_CHECK_REQUIRED:
+                                // DANGER WILL ROBINSON!
+                                Log.e(LOG_TAG, "In LVL checking loop!");
                                 mNotification
-                                        .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_FETCHING_URL);
+                                        .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_UNLICENSED);
+                                throw new RuntimeException(
+                                        "Error with LVL checking and database integrity");
+                            case DOWNLOAD_REQUIRED:
+                                // do nothing. the download will notify the
+                                // application
+                                // when things are done
                                 break;
                         }
-                    } finally {
-                        setServiceRunning(false);
+                    } catch (NameNotFoundException e1) {
+                        e1.printStackTrace();
+                        throw new RuntimeException(
+                                "Error with getting information from package name");
                     }
-
+                } finally {
+                    setServiceRunning(false);
                 }
+            }
 
-                @Override
-                public void applicationError(int errorCode) {
-                    try {
-                        mNotification
-                                .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_FETCHING_URL);
-                    } finally {
-                        setServiceRunning(false);
+            @Override
+            public void dontAllow(int reason) {
+                if (Policy.RETRY == reason && null != gracePolicy) {
+                    Log.i(LOG_TAG, "Licensing service unavailable, using the kept license "
+                            + "response in its grace period.");
+                    newLicenseCallback(context, gracePolicy, null).allow(reason);
+                    return;
+                }
+                try
+                {
+                    switch (reason) {
+                        case Policy.NOT_LICENSED:
+                            mNotification
+                                    .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_UNLICENSED);
+                            break;
+                        case Policy.RETRY:
+                            mNotification
+                                    .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_FETCHING_URL);
+                            break;
                     }
+                } finally {
+                    setServiceRunning(false);
                 }
 
-            });
+            }
+
+            @Override
+            public void applicationError(int errorCode) {
+                try {
+                    mNotification
+                            .onDownloadStateChanged(IDownloaderClient.STATE_FAILED_FETCHING_URL);
+                } finally {
+                    setServiceRunning(false);
+                }
+            }
+
+        };
+    }
+
+    private class LVLRunnable implements Runnable {
+        LVLRunnable(Context context, PendingIntent intent, boolean useKeptLicense,
+                APKExpansionPolicy gracePolicy) {
+            mContext = context;
+            mPendingIntent = intent;
+            mUseKeptLicense = useKeptLicense;
+            mGracePolicy = gracePolicy;
+        }
+
+        final Context mContext;
+        final boolean mUseKeptLicense;
+        final APKExpansionPolicy mGracePolicy;
+
+        @Override
+        public void run() {
+            setServiceRunning(true);
+            mNotification.onDownloadStateChanged(IDownloaderClient.STATE_FETCHING_URL);
+            if (null == sLicenseChecker) {
+                String deviceId = getDeviceId(mContext);
+                sLicensePolicy = new APKExpansionPolicy(mContext,
+                        new AESObfuscator(getSALT(), mContext.getPackageName(), deviceId));
+                // Construct the LicenseChecker with a Policy.
+                sLicenseChecker = new LicenseChecker(mContext, sLicensePolicy,
+                        getPublicKey() // Your public licensing key.
+                );
+            }
+            final APKExpansionPolicy aep = sLicensePolicy;
+
+            LicenseCheckerCallback callback = newLicenseCallback(mContext, aep, mGracePolicy);
+            if (!mUseKeptLicense) {
+                aep.clearLicense();
+            }
+
+            // reset our policy back to the start of the world to force a
+            // re-check
+            aep.resetPolicy();
+
+            // let's try and get the OBB file from LVL first
+            sLicenseChecker.checkAccess(callback);
 
         }
 
@@ -901,9 +1040,44 @@ public abstract class DownloaderService extends CustomIntentService implements I
      * @param context
      */
     public void updateLVL(final Context context) {
+        updateLVL(context, true);
+    }
+
+    /**
+     * Updates the LVL information, from the server unless useKeptLicense is
+     * set and the last response the server signed for this version is still
+     * valid.
+     * 
+     * @param context
+     * @param useKeptLicense false if the expansion URLs of the last response
+     *            no longer work
+     */
+    private void updateLVL(final Context context, boolean useKeptLicense) {
         Context c = context.getApplicationContext();
+        // the license check runs on the main thread; make sure the key for the
+        // policy's obfuscator is derived by then, so it does not wait for it
+        AESKeyCache.get(AESKeyCache.prefetch(getSALT(), c.getPackageName(), getDeviceId(c)));
+        APKExpansionPolicy gracePolicy = null;
+        if (useKeptLicense) {
+            // verifying and decrypting the kept response, and applying it,
+            // stay on this thread; only the binder check needs the main one
+            APKExpansionPolicy kept = new APKExpansionPolicy(c,
+                    new AESObfuscator(getSALT(), c.getPackageName(), getDeviceId(c)));
+            // a response the server signed for this version that is still
+            // valid has everything the downloads need
+            if (kept.restoreLicense(getPublicKey(), false)) {
+                Log.i(LOG_TAG, "Using the kept license response.");
+                setServiceRunning(true);
+                mNotification.onDownloadStateChanged(IDownloaderClient.STATE_FETCHING_URL);
+                newLicenseCallback(c, kept, null).allow(Policy.LICENSED);
+                return;
+            }
+            if (kept.restoreLicense(getPublicKey(), true)) {
+                gracePolicy = kept;
+            }
+        }
         Handler h = new Handler(c.getMainLooper());
-        h.post(new LVLRunnable(c, mPendingIntent));
+        h.post(new LVLRunnable(c, mPendingIntent, useKeptLicense, gracePolicy));
     }
 
     /**
@@ -957,10 +1131,14 @@ public abstract class DownloaderService extends CustomIntentService implements I
                 className);
         mAlarmIntent = PendingIntent.getBroadcast(this, 0, intent,
                 PendingIntent.FLAG_ONE_SHOT);
-        alarms.set(
-                AlarmManager.RTC_WAKEUP,
-                System.currentTimeMillis() + wakeUp, mAlarmIntent
-                );
+        long triggerAtMillis = System.currentTimeMillis() + wakeUp;
+        if (Build.VERSION.SDK_INT >= 19 && wakeUp < Constants.WATCHDOG_WAKE_TIMER) {
+            // set() is inexact from KitKat on, and could delay a short
+            // backoff by several minutes
+            alarms.setExact(AlarmManager.RTC_WAKEUP, triggerAtMillis, mAlarmIntent);
+        } else {
+            alarms.set(AlarmManager.RTC_WAKEUP, triggerAtMillis, mAlarmIntent);
+        }
     }
 
     private void cancelAlarms() {
@@ -1034,8 +1212,8 @@ public abstract class DownloaderService extends CustomIntentService implements I
 
             // get each download
             DownloadInfo[] infos = db.getDownloads();
-            mBytesSoFar = 0;
-            mTotalLength = 0;
+            long bytesSoFar = 0;
+            long totalLength = 0;
             mFileCount = infos.length;
             for (DownloadInfo info : infos) {
                 // We do an (simple) integrity check on each file, just to make
@@ -1045,11 +1223,26 @@ public abstract class DownloaderService extends CustomIntentService implements I
                     if (!Helpers.doesFileExist(this, info.mFileName, info.mTotalBytes, true)) {
                         info.mStatus = 0;
                         info.mCurrentBytes = 0;
+                    } else if (!DownloadVerifier.verify(this, db, info)) {
+                        // the right size, but corrupt
+                        new File(Helpers.generateSaveFileName(this, info.mFileName)).delete();
+                        DownloadMetrics.getInstance().recordWastedBytes(info.mTotalBytes);
+                        info.mStatus = 0;
+                        info.mCurrentBytes = 0;
+                        info.mCrc32 = StreamingChecksum.UNKNOWN;
+                    } else {
+                        // also covers files delivered by Market
+                        DownloadVerifier.ensureZipIndex(this, info);
                     }
                 }
                 // get aggregate data
-                mTotalLength += info.mTotalBytes;
-                mBytesSoFar += info.mCurrentBytes;
+                totalLength += info.mTotalBytes;
+                bytesSoFar += info.mCurrentBytes;
+            }
+            synchronized (mProgressLock) {
+                mBytesSoFar = bytesSoFar;
+                mTotalLength = totalLength;
+                mSessionBytes.clear();
             }
 
             // loop through all downloads and fetch them
@@ -1068,26 +1261,19 @@ public abstract class DownloaderService extends CustomIntentService implements I
                 registerReceiver(mConnReceiver, intentFilter);
             }
 
-            for (DownloadInfo info : infos) {
-                long startingCount = info.mCurrentBytes;
+            runDownloads(infos);
 
-                if (info.mStatus != STATUS_SUCCESS) {
-                    DownloadThread dt = new DownloadThread(info, this, mNotification);
-                    cancelAlarms();
-                    scheduleAlarm(Constants.ACTIVE_THREAD_WATCHDOG);
-                    dt.run();
-                    cancelAlarms();
-                }
+            for (DownloadInfo info : infos) {
                 db.updateFromDb(info);
-                boolean setWakeWatchdog = false;
+                // when to check again, or 0 to leave it to the client
+                long wakeUp = 0;
                 int notifyStatus;
                 switch (info.mStatus) {
                     case STATUS_FORBIDDEN:
                         // the URL is out of date
-                        updateLVL(this);
+                        updateLVL(this, false);
                         return;
                     case STATUS_SUCCESS:
-                        mBytesSoFar += info.mCurrentBytes - startingCount;
                         db.updateMetadata(mPackageInfo.versionCode, 0);
                         continue;
                     case STATUS_FILE_DELIVERED_INCORRECTLY:
@@ -1096,15 +1282,21 @@ public abstract class DownloaderService extends CustomIntentService implements I
                         notifyStatus = IDownloaderClient.STATE_PAUSED_NETWORK_SETUP_FAILURE;
                         info.mCurrentBytes = 0;
                         db.updateDownload(info);
-                        setWakeWatchdog = true;
+                        wakeUp = Constants.WATCHDOG_WAKE_TIMER;
                         break;
                     case STATUS_PAUSED_BY_APP:
                         notifyStatus = IDownloaderClient.STATE_PAUSED_BY_REQUEST;
                         break;
                     case STATUS_WAITING_FOR_NETWORK:
+                        // nothing listens for the network while the service
+                        // is stopped, so keep checking for it
+                        notifyStatus = IDownloaderClient.STATE_PAUSED_NETWORK_UNAVAILABLE;
+                        wakeUp = Constants.WATCHDOG_WAKE_TIMER;
+                        break;
                     case STATUS_WAITING_TO_RETRY:
                         notifyStatus = IDownloaderClient.STATE_PAUSED_NETWORK_UNAVAILABLE;
-                        setWakeWatchdog = true;
+                        long now = System.currentTimeMillis();
+                        wakeUp = Math.max(1, info.restartTime(now) - now);
                         break;
                     case STATUS_QUEUED_FOR_WIFI_OR_CELLULAR_PERMISSION:
                     case STATUS_QUEUED_FOR_WIFI:
@@ -1112,34 +1304,34 @@ public abstract class DownloaderService extends CustomIntentService implements I
                         if (null != mWifiManager) {
                             if (!mWifiManager.isWifiEnabled()) {
                                 notifyStatus = IDownloaderClient.STATE_PAUSED_WIFI_DISABLED_NEED_CELLULAR_PERMISSION;
-                                setWakeWatchdog = true;
+                                wakeUp = Constants.WATCHDOG_WAKE_TIMER;
                                 break;
                             }
                         }
                         notifyStatus = IDownloaderClient.STATE_PAUSED_NEED_CELLULAR_PERMISSION;
-                        setWakeWatchdog = true;
+                        wakeUp = Constants.WATCHDOG_WAKE_TIMER;
                         break;
                     case STATUS_CANCELED:
                         notifyStatus = IDownloaderClient.STATE_FAILED_CANCELED;
-                        setWakeWatchdog = true;
+                        wakeUp = Constants.WATCHDOG_WAKE_TIMER;
                         break;
 
                     case STATUS_INSUFFICIENT_SPACE_ERROR:
                         notifyStatus = IDownloaderClient.STATE_FAILED_SDCARD_FULL;
-                        setWakeWatchdog = true;
+                        wakeUp = Constants.WATCHDOG_WAKE_TIMER;
                         break;
 
                     case STATUS_DEVICE_NOT_FOUND_ERROR:
                         notifyStatus = IDownloaderClient.STATE_PAUSED_SDCARD_UNAVAILABLE;
-                        setWakeWatchdog = true;
+                        wakeUp = Constants.WATCHDOG_WAKE_TIMER;
                         break;
 
                     default:
                         notifyStatus = IDownloaderClient.STATE_FAILED;
                         break;
                 }
-                if (setWakeWatchdog) {
-                    scheduleAlarm(Constants.WATCHDOG_WAKE_TIMER);
+                if (wakeUp > 0) {
+                    scheduleAlarm(wakeUp);
                 } else {
                     cancelAlarms();
                 }
@@ -1155,12 +1347,171 @@ public abstract class DownloaderService extends CustomIntentService implements I
         }
     }
 
+    /**
+     * Run a DownloadThread for every download that is not complete yet, up to
+     * {@link Constants#MAX_CONCURRENT_DOWNLOADS} at once, and wait for all of
+     * them to stop. The connection budget is split between the downloads
+     * that run together.
+     */
+    private void runDownloads(DownloadInfo[] infos) {
+        List<DownloadInfo> pending = new ArrayList<DownloadInfo>();
+        for (DownloadInfo info : infos) {
+            if (info.mStatus != STATUS_SUCCESS) {
+                pending.add(info);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        int threadCount = Math.min(pending.size(), Constants.MAX_CONCURRENT_DOWNLOADS);
+        final int maxConnections = Math.max(1,
+                Constants.MAX_DOWNLOAD_CONNECTIONS / threadCount);
+        cancelAlarms();
+        scheduleAlarm(Constants.ACTIVE_THREAD_WATCHDOG);
+        startSession();
+        try {
+            if (threadCount == 1) {
+                for (DownloadInfo info : pending) {
+                    runDownload(info, maxConnections);
+                    if (info.mStatus != STATUS_SUCCESS) {
+                        // the status is reported below; later files wait
+                        break;
+                    }
+                }
+                return;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final DownloadInfo info : pending) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            runDownload(info, maxConnections);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        Log.e(LOG_TAG, "download thread failed", ex.getCause());
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            DownloadMetrics.getInstance().endSession();
+            cancelAlarms();
+        }
+    }
+
+    /**
+     * Start a download session, whose first speed sample begins now rather
+     * than at the end of the previous session.
+     */
+    private synchronized void startSession() {
+        synchronized (mProgressLock) {
+            mBytesAtSample = mBytesSoFar;
+        }
+        mMillisecondsAtSample = SystemClock.uptimeMillis();
+        DownloadMetrics.getInstance().startSession();
+    }
+
+    private void runDownload(DownloadInfo info, int maxConnections) {
+        long startingCount = info.mCurrentBytes;
+        DownloadThread dt = new DownloadThread(info, this, mNotification, maxConnections);
+        try {
+            dt.run();
+        } finally {
+            synchronized (mProgressLock) {
+                mBytesSoFar += info.mCurrentBytes - startingCount;
+                mSessionBytes.remove(info.mIndex);
+            }
+        }
+    }
+
+    /**
+     * Record the bytes a download has transferred in its current session.
+     *
+     * @return the progress of all downloads together
+     */
+    long updateSessionBytes(DownloadInfo info, long bytesThisSession) {
+        synchronized (mProgressLock) {
+            mSessionBytes.put(info.mIndex, bytesThisSession);
+            long totalBytesSoFar = mBytesSoFar;
+            for (Long sessionBytes : mSessionBytes.values()) {
+                totalBytesSoFar += sessionBytes;
+            }
+            return totalBytesSoFar;
+        }
+    }
+
+    long getTotalLength() {
+        synchronized (mProgressLock) {
+            return mTotalLength;
+        }
+    }
+
+    BandwidthLimiter getBandwidthLimiter() {
+        return mBandwidthLimiter;
+    }
+
+    /**
+     * Limit the combined bandwidth of all downloads, in bytes per second.
+     * Zero removes the limit.
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        mBandwidthLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Returns the shared HTTP transport, after evicting the connections that
+     * have been idle for too long.
+     */
+    synchronized DownloadTransport getTransport(String userAgent) {
+        if (null == mTransport) {
+            if (Constants.URL_CONNECTION_TRANSPORT) {
+                // one factory with a persistent session cache, so that TLS
+                // sessions are resumed across connections and restarts
+                mTransport = new UrlConnectionTransport(userAgent,
+                        SSLCertificateSocketFactory.getDefault(Constants.SOCKET_TIMEOUT,
+                                new SSLSessionCache(this)));
+            } else {
+                mTransport = new ApacheHttpTransport(AndroidHttpClient.newInstance(
+                        userAgent, this, Constants.MAX_DOWNLOAD_CONNECTIONS));
+            }
+        } else {
+            mTransport.closeIdleConnections(Constants.MAX_CONNECTION_IDLE_TIME);
+        }
+        return mTransport;
+    }
+
+    private synchronized void closeTransport() {
+        final DownloadTransport transport = mTransport;
+        mTransport = null;
+        if (null != transport) {
+            // closing a TLS connection writes to the network, which is not
+            // allowed on the main thread
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    transport.close();
+                }
+            }, "DownloaderHttpClose").start();
+        }
+    }
+
     @Override
     public void onDestroy() {
         if (null != mConnReceiver) {
             unregisterReceiver(mConnReceiver);
             mConnReceiver = null;
         }
+        closeTransport();
         mServiceStub.disconnect(this);
         super.onDestroy();
     }
@@ -1287,7 +1638,8 @@ public abstract class DownloaderService extends CustomIntentService implements I
      */
     static private final float SMOOTHING_FACTOR = 0.005f;
 
-    public void notifyUpdateBytes(long totalBytesSoFar) {
+    public synchronized void notifyUpdateBytes(long totalBytesSoFar) {
+        long totalLength = getTotalLength();
         long timeRemaining;
         long currentTime = SystemClock.uptimeMillis();
         if (0 != mMillisecondsAtSample) {
@@ -1295,25 +1647,21 @@ public abstract class DownloaderService extends CustomIntentService implements I
             long timePassed = currentTime - mMillisecondsAtSample;
             long bytesInSample = totalBytesSoFar - mBytesAtSample;
             float currentSpeedSample = (float) bytesInSample / (float) timePassed;
+            DownloadMetrics.getInstance().recordThroughput(bytesInSample, timePassed);
             if (0 != mAverageDownloadSpeed) {
                 mAverageDownloadSpeed = SMOOTHING_FACTOR * currentSpeedSample
                         + (1 - SMOOTHING_FACTOR) * mAverageDownloadSpeed;
             } else {
                 mAverageDownloadSpeed = currentSpeedSample;
             }
-            timeRemaining = (long) ((mTotalLength - totalBytesSoFar) / mAverageDownloadSpeed);
+            timeRemaining = (long) ((totalLength - totalBytesSoFar) / mAverageDownloadSpeed);
         } else {
             timeRemaining = -1;
         }
         mMillisecondsAtSample = currentTime;
         mBytesAtSample = totalBytesSoFar;
-        mNotification.onDownloadProgress(
-                new DownloadProgressInfo(mTotalLength,
-                        totalBytesSoFar,
-                        timeRemaining,
-                        mAverageDownloadSpeed)
-                );
-
+        mNotification.onDownloadProgress(totalLength, totalBytesSoFar,
+                timeRemaining, mAverageDownloadSpeed);
     }
 
     @Override
@@ -1338,4 +1686,9 @@ public abstract class DownloaderService extends CustomIntentService implements I
         mNotification.setMessenger(mClientMessenger);
     }
 
+    @Override
+    public void requestProgressUpdate() {
+        mNotification.onProgressRequested();
+    }
+
 }
@@ -26,19 +26,57 @@ import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import com.google.android.vending.expansion.downloader.Constants;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 public class DownloadsDB {
     private static final String DATABASE_NAME = "DownloadsDB";
-    private static final int DATABASE_VERSION = 7;
+    private static final int DATABASE_VERSION = 12;
     public static final String LOG_TAG = DownloadsDB.class.getName();
     final SQLiteOpenHelper mHelper;
     SQLiteStatement mGetDownloadByIndex;
     SQLiteStatement mUpdateCurrentBytes;
+    SQLiteStatement mUpdateSegmentCurrentBytes;
     private static DownloadsDB mDownloadsDB;
     long mMetadataRowID = -1;
     int mVersionCode = -1;
     int mStatus = -1;
     int mFlags;
 
+    /*
+     * The progress journal: the latest byte counts posted by the download
+     * threads, keyed by file index, that have not been written yet.
+     */
+    private final Object mJournalLock = new Object();
+    private final HashMap<Integer, long[]> mPendingCurrentBytes = new HashMap<Integer, long[]>();
+    private final HashMap<Integer, DownloadSegment[]> mPendingSegments =
+            new HashMap<Integer, DownloadSegment[]>();
+    private ScheduledExecutorService mJournalExecutor;
+    private boolean mFlushScheduled;
+
+    // the flush thread must not keep the process alive on its own
+    private static final ThreadFactory JOURNAL_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DownloadsDBJournal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushProgress();
+        }
+    };
+
     static public synchronized DownloadsDB getDB(Context paramContext) {
         if (null == mDownloadsDB) {
             return new DownloadsDB(paramContext);
@@ -60,15 +98,28 @@ public class DownloadsDB {
         if (null == mUpdateCurrentBytes) {
             mUpdateCurrentBytes = mHelper.getReadableDatabase().compileStatement(
                     "UPDATE " + DownloadColumns.TABLE_NAME + " SET " + DownloadColumns.CURRENTBYTES
-                            + " = ?" +
+                            + " = ?, " + DownloadColumns.CRC32 + " = ?" +
                             " WHERE " + DownloadColumns.INDEX + " = ?");
         }
         return mUpdateCurrentBytes;
     }
 
+    private SQLiteStatement getUpdateSegmentCurrentBytesStatement() {
+        if (null == mUpdateSegmentCurrentBytes) {
+            mUpdateSegmentCurrentBytes = mHelper.getWritableDatabase().compileStatement(
+                    "UPDATE " + SegmentColumns.TABLE_NAME + " SET " + SegmentColumns.CURRENTBYTES
+                            + " = ?, " + SegmentColumns.CRC32 + " = ?" +
+                            " WHERE " + SegmentColumns.FILE_INDEX + " = ?" +
+                            " AND " + SegmentColumns.INDEX + " = ?");
+        }
+        return mUpdateSegmentCurrentBytes;
+    }
+
     private DownloadsDB(Context paramContext) {
         this.mHelper = new DownloadsContentDBHelper(paramContext);
-        final SQLiteDatabase sqldb = mHelper.getReadableDatabase();
+        final SQLiteDatabase sqldb = mHelper.getWritableDatabase();
+        // progress is written while the service reads the download state
+        sqldb.enableWriteAheadLogging();
         // Query for the version code, the row ID of the metadata (for future
         // updating) the status and the flags
         Cursor cur = sqldb.rawQuery("SELECT " +
@@ -107,11 +158,30 @@ public class DownloadsDB {
         return null;
     }
 
+    /**
+     * Returns the download stored for an expansion file index, or null.
+     */
+    protected DownloadInfo getDownloadInfoByIndex(int index) {
+        final SQLiteDatabase sqldb = mHelper.getReadableDatabase();
+        Cursor itemcur = null;
+        try {
+            itemcur = sqldb.query(DownloadColumns.TABLE_NAME, DC_PROJECTION,
+                    DownloadColumns.INDEX + " = " + index, null, null, null, null);
+            if (null != itemcur && itemcur.moveToFirst()) {
+                return getDownloadInfoFromCursor(itemcur);
+            }
+        } finally {
+            if (null != itemcur)
+                itemcur.close();
+        }
+        return null;
+    }
+
     public long getIDForDownloadInfo(final DownloadInfo di) {
         return getIDByIndex(di.mIndex);
     }
 
-    public long getIDByIndex(int index) {
+    public synchronized long getIDByIndex(int index) {
         SQLiteStatement downloadByIndex = getDownloadByIndexStatement();
         downloadByIndex.clearBindings();
         downloadByIndex.bindLong(1, index);
@@ -122,15 +192,114 @@ public class DownloadsDB {
         }
     }
 
-    public void updateDownloadCurrentBytes(final DownloadInfo di) {
+    public synchronized void updateDownloadCurrentBytes(final DownloadInfo di) {
+        synchronized (mJournalLock) {
+            mPendingCurrentBytes.remove(di.mIndex);
+        }
+        bindAndExecuteCurrentBytes(di.mIndex, di.mCurrentBytes, di.mCrc32);
+    }
+
+    private void bindAndExecuteCurrentBytes(int index, long currentBytes, long crc32) {
         SQLiteStatement downloadCurrentBytes = getUpdateCurrentBytesStatement();
         downloadCurrentBytes.clearBindings();
-        downloadCurrentBytes.bindLong(1, di.mCurrentBytes);
-        downloadCurrentBytes.bindLong(2, di.mIndex);
+        downloadCurrentBytes.bindLong(1, currentBytes);
+        downloadCurrentBytes.bindLong(2, crc32);
+        downloadCurrentBytes.bindLong(3, index);
         downloadCurrentBytes.execute();
     }
 
+    /**
+     * Records the progress of a download in the journal without touching the
+     * database. The latest value is written by the next flush, which happens
+     * {@link Constants#PROGRESS_FLUSH_INTERVAL} ms later at the most.
+     */
+    public void journalDownloadCurrentBytes(final DownloadInfo di) {
+        synchronized (mJournalLock) {
+            mPendingCurrentBytes.put(di.mIndex, new long[] {
+                    di.mCurrentBytes, di.mCrc32
+            });
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Records the progress of every segment of a download in the journal.
+     */
+    public void journalSegmentsCurrentBytes(DownloadInfo di, DownloadSegment[] segments) {
+        DownloadSegment[] snapshot = new DownloadSegment[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            DownloadSegment segment = segments[i];
+            snapshot[i] = new DownloadSegment(segment.mIndex, segment.mStartByte,
+                    segment.mEndByte);
+            snapshot[i].mCurrentBytes = segment.mCurrentBytes;
+            snapshot[i].mCrc32 = segment.mCrc32;
+        }
+        synchronized (mJournalLock) {
+            mPendingSegments.put(di.mIndex, snapshot);
+            scheduleFlushLocked();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (mFlushScheduled) {
+            return;
+        }
+        if (null == mJournalExecutor) {
+            mJournalExecutor = Executors.newSingleThreadScheduledExecutor(
+                    JOURNAL_THREAD_FACTORY);
+        }
+        mFlushScheduled = true;
+        mJournalExecutor.schedule(mFlushRunnable, Constants.PROGRESS_FLUSH_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes everything in the progress journal to the database in a single
+     * transaction.
+     */
+    public synchronized void flushProgress() {
+        Map<Integer, long[]> currentBytes;
+        Map<Integer, DownloadSegment[]> segments;
+        synchronized (mJournalLock) {
+            mFlushScheduled = false;
+            if (mPendingCurrentBytes.isEmpty() && mPendingSegments.isEmpty()) {
+                return;
+            }
+            currentBytes = new HashMap<Integer, long[]>(mPendingCurrentBytes);
+            segments = new HashMap<Integer, DownloadSegment[]>(mPendingSegments);
+            mPendingCurrentBytes.clear();
+            mPendingSegments.clear();
+        }
+        final SQLiteDatabase sqldb = mHelper.getWritableDatabase();
+        sqldb.beginTransaction();
+        try {
+            for (Map.Entry<Integer, long[]> entry : currentBytes.entrySet()) {
+                long[] progress = entry.getValue();
+                bindAndExecuteCurrentBytes(entry.getKey(), progress[0], progress[1]);
+            }
+            for (Map.Entry<Integer, DownloadSegment[]> entry : segments.entrySet()) {
+                for (DownloadSegment segment : entry.getValue()) {
+                    bindAndExecuteSegmentCurrentBytes(entry.getKey(), segment.mIndex,
+                            segment.mCurrentBytes, segment.mCrc32);
+                }
+            }
+            sqldb.setTransactionSuccessful();
+        } catch (android.database.sqlite.SQLiteException ex) {
+            ex.printStackTrace();
+        } finally {
+            sqldb.endTransaction();
+        }
+    }
+
     public void close() {
+        synchronized (mJournalLock) {
+            if (null != mJournalExecutor) {
+                // the flush below writes whatever the scheduled one would have
+                mJournalExecutor.shutdownNow();
+                mJournalExecutor = null;
+            }
+        }
+        flushProgress();
         this.mHelper.close();
     }
 
@@ -167,11 +336,11 @@ public class DownloadsDB {
          * there must be a corresponding table name.
          */
         static final private String[][][] sSchemas = {
-                DownloadColumns.SCHEMA, MetadataColumns.SCHEMA
+                DownloadColumns.SCHEMA, MetadataColumns.SCHEMA, SegmentColumns.SCHEMA
         };
 
         static final private String[] sTables = {
-                DownloadColumns.TABLE_NAME, MetadataColumns.TABLE_NAME
+                DownloadColumns.TABLE_NAME, MetadataColumns.TABLE_NAME, SegmentColumns.TABLE_NAME
         };
 
         /**
@@ -254,6 +423,12 @@ public class DownloadsDB {
         public static final String NUM_FAILED = "FAILCOUNT";
         public static final String RETRY_AFTER = "RETRYAFTER";
         public static final String REDIRECT_COUNT = "REDIRECTCOUNT";
+        public static final String CRC32 = "CRC32";
+        public static final String FILE_MTIME = "FILEMTIME";
+        public static final String RETRY_CLASS = "RETRYCLASS";
+        public static final String NUM_SERVER_FAILED = "SERVERFAILCOUNT";
+        public static final String DELTA_BASE = "DELTABASE";
+        public static final String DELTA_URI = "DELTAURI";
 
         public static final String[][] SCHEMA = {
                 {
@@ -288,12 +463,59 @@ public class DownloadsDB {
                         RETRY_AFTER, "INTEGER"
                 }, {
                         REDIRECT_COUNT, "INTEGER"
+                },
+                {
+                        CRC32, "INTEGER"
+                }, {
+                        FILE_MTIME, "INTEGER"
+                },
+                {
+                        RETRY_CLASS, "INTEGER"
+                }, {
+                        DELTA_BASE, "TEXT"
+                },
+                {
+                        DELTA_URI, "TEXT"
+                }, {
+                        NUM_SERVER_FAILED, "INTEGER"
                 }
         };
         public static final String TABLE_NAME = "DownloadColumns";
         public static final String _ID = "DownloadColumns._id";
     }
 
+    public static class SegmentColumns implements BaseColumns {
+        public static final String FILE_INDEX = "FILEIDX";
+        public static final String INDEX = "SEGIDX";
+        public static final String STARTBYTE = "STARTBYTE";
+        public static final String ENDBYTE = "ENDBYTE";
+        public static final String CURRENTBYTES = "CURRENTBYTES";
+        public static final String CRC32 = "CRC32";
+
+        public static final String[][] SCHEMA = {
+                {
+                        BaseColumns._ID, "INTEGER PRIMARY KEY"
+                },
+                {
+                        FILE_INDEX, "INTEGER"
+                }, {
+                        INDEX, "INTEGER"
+                },
+                {
+                        STARTBYTE, "INTEGER"
+                }, {
+                        ENDBYTE, "INTEGER"
+                },
+                {
+                        CURRENTBYTES, "INTEGER"
+                }, {
+                        CRC32, "INTEGER"
+                }
+        };
+        public static final String TABLE_NAME = "SegmentColumns";
+        public static final String _ID = "SegmentColumns._id";
+    }
+
     private static final String[] DC_PROJECTION = {
             DownloadColumns.FILENAME,
             DownloadColumns.URI, DownloadColumns.ETAG,
@@ -301,7 +523,10 @@ public class DownloadsDB {
             DownloadColumns.LASTMOD, DownloadColumns.STATUS,
             DownloadColumns.CONTROL, DownloadColumns.NUM_FAILED,
             DownloadColumns.RETRY_AFTER, DownloadColumns.REDIRECT_COUNT,
-            DownloadColumns.INDEX
+            DownloadColumns.INDEX, DownloadColumns.CRC32,
+            DownloadColumns.FILE_MTIME, DownloadColumns.RETRY_CLASS,
+            DownloadColumns.DELTA_BASE, DownloadColumns.DELTA_URI,
+            DownloadColumns.NUM_SERVER_FAILED
     };
 
     private static final int FILENAME_IDX = 0;
@@ -316,6 +541,12 @@ public class DownloadsDB {
     private static final int RETRY_AFTER_IDX = 9;
     private static final int REDIRECT_COUNT_IDX = 10;
     private static final int INDEX_IDX = 11;
+    private static final int CRC32_IDX = 12;
+    private static final int FILE_MTIME_IDX = 13;
+    private static final int RETRY_CLASS_IDX = 14;
+    private static final int DELTA_BASE_IDX = 15;
+    private static final int DELTA_URI_IDX = 16;
+    private static final int NUM_SERVER_FAILED_IDX = 17;
 
     /**
      * This function will add a new file to the database if it does not exist.
@@ -335,12 +566,21 @@ public class DownloadsDB {
         cv.put(DownloadColumns.STATUS, di.mStatus);
         cv.put(DownloadColumns.CONTROL, di.mControl);
         cv.put(DownloadColumns.NUM_FAILED, di.mNumFailed);
+        cv.put(DownloadColumns.NUM_SERVER_FAILED, di.mNumServerFailed);
         cv.put(DownloadColumns.RETRY_AFTER, di.mRetryAfter);
+        cv.put(DownloadColumns.RETRY_CLASS, di.mRetryClass);
         cv.put(DownloadColumns.REDIRECT_COUNT, di.mRedirectCount);
+        cv.put(DownloadColumns.CRC32, di.mCrc32);
+        cv.put(DownloadColumns.FILE_MTIME, di.mFileMTime);
+        cv.put(DownloadColumns.DELTA_BASE, di.mDeltaBase);
+        cv.put(DownloadColumns.DELTA_URI, di.mDeltaUri);
         return updateDownload(di, cv);
     }
 
     public boolean updateDownload(DownloadInfo di, ContentValues cv) {
+        // a state change; write the progress journal first so the stored
+        // progress of other downloads is up to date as well
+        flushProgress();
         long id = di == null ? -1 : getIDForDownloadInfo(di);
         try {
             final SQLiteDatabase sqldb = mHelper.getWritableDatabase();
@@ -472,8 +712,21 @@ public class DownloadsDB {
         di.mStatus = cur.getInt(STATUS_IDX);
         di.mControl = cur.getInt(CONTROL_IDX);
         di.mNumFailed = cur.getInt(NUM_FAILED_IDX);
+        di.mNumServerFailed = cur.getInt(NUM_SERVER_FAILED_IDX);
         di.mRetryAfter = cur.getInt(RETRY_AFTER_IDX);
+        di.mRetryClass = cur.getInt(RETRY_CLASS_IDX);
         di.mRedirectCount = cur.getInt(REDIRECT_COUNT_IDX);
+        di.mCrc32 = cur.isNull(CRC32_IDX) ? StreamingChecksum.UNKNOWN : cur.getLong(CRC32_IDX);
+        di.mFileMTime = cur.getLong(FILE_MTIME_IDX);
+        di.mDeltaBase = cur.getString(DELTA_BASE_IDX);
+        di.mDeltaUri = cur.getString(DELTA_URI_IDX);
+        synchronized (mJournalLock) {
+            long[] pending = mPendingCurrentBytes.get(di.mIndex);
+            if (null != pending) {
+                di.mCurrentBytes = pending[0];
+                di.mCrc32 = pending[1];
+            }
+        }
     }
 
     public DownloadInfo getDownloadInfoFromCursor(Cursor cur) {
@@ -484,6 +737,114 @@ public class DownloadsDB {
         return di;
     }
 
+    private static final String[] SC_PROJECTION = {
+            SegmentColumns.INDEX, SegmentColumns.STARTBYTE,
+            SegmentColumns.ENDBYTE, SegmentColumns.CURRENTBYTES,
+            SegmentColumns.CRC32
+    };
+
+    /**
+     * Returns the persisted byte ranges of a segmented download, or null if
+     * the download has not been split into segments.
+     */
+    public DownloadSegment[] getSegments(DownloadInfo di) {
+        final SQLiteDatabase sqldb = mHelper.getReadableDatabase();
+        Cursor cur = null;
+        try {
+            cur = sqldb.query(SegmentColumns.TABLE_NAME, SC_PROJECTION,
+                    SegmentColumns.FILE_INDEX + " = ?",
+                    new String[] {
+                        Integer.toString(di.mIndex)
+                    }, null, null, SegmentColumns.INDEX);
+            if (null != cur && cur.moveToFirst()) {
+                DownloadSegment[] retSegments = new DownloadSegment[cur.getCount()];
+                int idx = 0;
+                do {
+                    DownloadSegment segment = new DownloadSegment(cur.getInt(0),
+                            cur.getLong(1), cur.getLong(2));
+                    segment.mCurrentBytes = cur.getLong(3);
+                    segment.mCrc32 = cur.getLong(4);
+                    retSegments[idx++] = segment;
+                } while (cur.moveToNext());
+                synchronized (mJournalLock) {
+                    DownloadSegment[] pending = mPendingSegments.get(di.mIndex);
+                    if (null != pending) {
+                        for (DownloadSegment segment : pending) {
+                            for (DownloadSegment retSegment : retSegments) {
+                                if (retSegment.mIndex == segment.mIndex) {
+                                    retSegment.mCurrentBytes = segment.mCurrentBytes;
+                                    retSegment.mCrc32 = segment.mCrc32;
+                                }
+                            }
+                        }
+                    }
+                }
+                return retSegments;
+            }
+            return null;
+        } finally {
+            if (null != cur) {
+                cur.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the segments stored for a download with the given ones.
+     */
+    public boolean updateSegments(DownloadInfo di, DownloadSegment[] segments) {
+        synchronized (mJournalLock) {
+            mPendingSegments.remove(di.mIndex);
+        }
+        final SQLiteDatabase sqldb = mHelper.getWritableDatabase();
+        sqldb.beginTransaction();
+        try {
+            sqldb.delete(SegmentColumns.TABLE_NAME,
+                    SegmentColumns.FILE_INDEX + " = " + di.mIndex, null);
+            ContentValues cv = new ContentValues();
+            for (DownloadSegment segment : segments) {
+                cv.clear();
+                cv.put(SegmentColumns.FILE_INDEX, di.mIndex);
+                cv.put(SegmentColumns.INDEX, segment.mIndex);
+                cv.put(SegmentColumns.STARTBYTE, segment.mStartByte);
+                cv.put(SegmentColumns.ENDBYTE, segment.mEndByte);
+                cv.put(SegmentColumns.CURRENTBYTES, segment.mCurrentBytes);
+                cv.put(SegmentColumns.CRC32, segment.mCrc32);
+                if (-1 == sqldb.insert(SegmentColumns.TABLE_NAME,
+                        SegmentColumns.FILE_INDEX, cv)) {
+                    return false;
+                }
+            }
+            sqldb.setTransactionSuccessful();
+            return true;
+        } catch (android.database.sqlite.SQLiteException ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            sqldb.endTransaction();
+        }
+    }
+
+    private void bindAndExecuteSegmentCurrentBytes(int fileIndex, int segmentIndex,
+            long currentBytes, long crc32) {
+        SQLiteStatement segmentCurrentBytes = getUpdateSegmentCurrentBytesStatement();
+        segmentCurrentBytes.clearBindings();
+        segmentCurrentBytes.bindLong(1, currentBytes);
+        segmentCurrentBytes.bindLong(2, crc32);
+        segmentCurrentBytes.bindLong(3, fileIndex);
+        segmentCurrentBytes.bindLong(4, segmentIndex);
+        segmentCurrentBytes.execute();
+    }
+
+    public void deleteSegments(DownloadInfo di) {
+        synchronized (mJournalLock) {
+            mPendingSegments.remove(di.mIndex);
+        }
+        final SQLiteDatabase sqldb = mHelper.getWritableDatabase();
+        sqldb.delete(SegmentColumns.TABLE_NAME,
+                SegmentColumns.FILE_INDEX + " = " + di.mIndex, null);
+    }
+
     public DownloadInfo[] getDownloads() {
         final SQLiteDatabase sqldb = mHelper.getReadableDatabase();
         Cursor cur = null;
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+import com.google.android.vending.expansion.downloader.Helpers;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Decides whether and when a failed download is retried. Failures are
+ * grouped into classes, each with its own budget of retries since the last
+ * attempt that made progress, and
+ * the delay before the next retry follows decorrelated-jitter backoff: a
+ * random time between the base delay and three times the previous delay,
+ * capped. A delay the server asks for with Retry-After is a lower bound.
+ */
+public class RetryPolicy {
+    /** Not a failure that is retried */
+    public static final int CLASS_NONE = 0;
+
+    /** The connection failed or broke while the network was up */
+    public static final int CLASS_NETWORK = 1;
+
+    /** The server reported a temporary problem, such as 503 */
+    public static final int CLASS_SERVER = 2;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /**
+     * Returns the number of retries allowed for a class of failures between
+     * attempts that make progress.
+     */
+    public static int getBudget(int retryClass) {
+        switch (retryClass) {
+            case CLASS_NETWORK:
+                return Constants.MAX_NETWORK_RETRIES;
+            case CLASS_SERVER:
+                return Constants.MAX_SERVER_RETRIES;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the number of failures of a class since the last attempt that
+     * made progress.
+     */
+    public static int getFailures(DownloadInfo info, int retryClass) {
+        switch (retryClass) {
+            case CLASS_NETWORK:
+                return info.mNumFailed - info.mNumServerFailed;
+            case CLASS_SERVER:
+                return info.mNumServerFailed;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns true if the budget of the given class of failures is not spent
+     * for a download. Failures of another class do not count against it, but
+     * do not reset it either, so a download that keeps alternating between
+     * classes still runs out of retries.
+     */
+    public static boolean canRetry(DownloadInfo info, int retryClass) {
+        return getFailures(info, retryClass) < getBudget(retryClass);
+    }
+
+    /**
+     * Returns the delay before the next retry, in ms.
+     *
+     * @param previousDelay the delay before the previous retry, or 0 for the
+     *            first retry
+     */
+    public static long nextDelay(long previousDelay) {
+        long base = Constants.RETRY_BASE_DELAY;
+        long upper = Math.max(base, Math.min(Constants.RETRY_MAX_DELAY, previousDelay * 3));
+        long delay = base + (long) (Helpers.sRandom.nextDouble() * (upper - base));
+        return Math.min(Constants.RETRY_MAX_DELAY, delay);
+    }
+
+    /**
+     * Parses the value of a Retry-After header, either in delta-seconds or
+     * as an HTTP date.
+     *
+     * @return the delay the server asks for, in ms and clamped to the range
+     *         the download manager accepts, or 0 if the value is invalid
+     */
+    public static long parseRetryAfter(String value, long now) {
+        long seconds;
+        try {
+            seconds = Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                seconds = (format.parse(value.trim()).getTime() - now) / 1000;
+            } catch (ParseException pex) {
+                return 0;
+            }
+        }
+        if (seconds < 0) {
+            return 0;
+        }
+        seconds = Math.max(Constants.MIN_RETRY_AFTER,
+                Math.min(Constants.MAX_RETRY_AFTER, seconds));
+        return seconds * 1000;
+    }
+
+    /**
+     * Records the outcome of a download attempt, and sets the time of the
+     * next retry if it failed.
+     *
+     * @param retryClass the class of the failure, or {@link #CLASS_NONE}
+     * @param retryAfter the delay the server asked for, in ms, or 0
+     * @param gotData whether the attempt made progress, which starts the
+     *            backoff over
+     */
+    public static void recordAttempt(DownloadInfo info, int retryClass, long retryAfter,
+            boolean gotData) {
+        if (retryClass == CLASS_NONE) {
+            info.mNumFailed = 0;
+            info.mNumServerFailed = 0;
+            info.mRetryClass = CLASS_NONE;
+            info.mRetryAfter = 0;
+            return;
+        }
+        long previousDelay = info.mRetryAfter;
+        if (gotData) {
+            info.mNumFailed = 0;
+            info.mNumServerFailed = 0;
+            previousDelay = 0;
+        }
+        info.mNumFailed++;
+        if (retryClass == CLASS_SERVER) {
+            info.mNumServerFailed++;
+        }
+        info.mRetryClass = retryClass;
+        info.mRetryAfter = (int) Math.max(nextDelay(previousDelay), retryAfter);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A CRC32 of a file that is computed while the file is downloaded. The value
+ * for the data up to the last checkpoint is kept as a plain number, so it can
+ * be stored next to the byte count of a download and picked up again when
+ * the download resumes. Data after the checkpoint goes through a regular
+ * {@link CRC32}, and the two are joined with {@link #combine}.
+ */
+public class StreamingChecksum {
+    /** Stored in place of a checksum that is not known */
+    public static final long UNKNOWN = -1;
+
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    private final CRC32 mRun = new CRC32();
+    private final byte[] mScratch = new byte[SCRATCH_SIZE];
+    private long mCheckpointValue;
+    private long mCheckpointLength;
+    private long mRunLength;
+
+    /**
+     * @param value the CRC32 of the data already downloaded
+     * @param length the length of the data already downloaded
+     */
+    public StreamingChecksum(long value, long length) {
+        mCheckpointValue = value;
+        mCheckpointLength = length;
+    }
+
+    /**
+     * Adds the bytes between the position and the limit of the buffer,
+     * without moving its position.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            mRun.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            mRunLength += buffer.remaining();
+            return;
+        }
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), mScratch.length);
+            source.get(mScratch, 0, length);
+            update(mScratch, 0, length);
+        }
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        mRun.update(data, offset, length);
+        mRunLength += length;
+    }
+
+    /**
+     * Returns the CRC32 of all the data added so far.
+     */
+    public long getValue() {
+        if (0 == mRunLength) {
+            return mCheckpointValue;
+        }
+        return combine(mCheckpointValue, mRun.getValue(), mRunLength);
+    }
+
+    public long getLength() {
+        return mCheckpointLength + mRunLength;
+    }
+
+    /**
+     * Folds the data added since the last checkpoint into the stored value,
+     * which keeps {@link #getValue} cheap.
+     */
+    public void checkpoint() {
+        mCheckpointValue = getValue();
+        mCheckpointLength += mRunLength;
+        mRun.reset();
+        mRunLength = 0;
+    }
+
+    /**
+     * Returns the CRC32 of two blocks of data joined together, given the
+     * CRC32 of each block and the length of the second one. This is the
+     * crc32_combine() algorithm from zlib.
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32]; // even-power-of-two zeros operator
+        long[] odd = new long[32]; // odd-power-of-two zeros operator
+
+        // put operator for one zero bit in odd
+        odd[0] = 0xedb88320L; // CRC-32 polynomial
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // put operator for two zero bits in even, four zero bits in odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply length2 zeros to crc1 (first square puts the operator for one
+        // zero byte, eight zero bits, in even)
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+/**
+ * State within a single-stream transfer: how far it has got, what the server
+ * said it would send, and when progress was last stored and reported. Byte
+ * counts are 64-bit throughout, since expansion files can be larger than
+ * 2 GB.
+ */
+class TransferState {
+    public long mBytesSoFar = 0;
+    public long mBytesThisSession = 0;
+    public String mHeaderETag;
+    public boolean mContinuingDownload = false;
+    public String mHeaderContentLength;
+    public String mHeaderContentDisposition;
+    public String mHeaderContentLocation;
+    public long mBytesNotified = 0;
+    public long mTimeLastNotification = 0;
+    public long mBytesCheckpointed = 0;
+    public long mTimeLastCheckpoint = 0;
+    // when the last request was sent, until its first byte arrives
+    public long mTimeRequestSent = 0;
+    // null when the checksum of the data before a resume is not known
+    public StreamingChecksum mChecksum = new StreamingChecksum(0, 0);
+
+    /**
+     * Continues a transfer after the data already in the destination file.
+     *
+     * @param fileLength the length of the partial file
+     * @param totalBytes the length of the whole file, or -1 if not known
+     * @param eTag the entity the partial file belongs to
+     */
+    public void resume(long fileLength, long totalBytes, String eTag) {
+        mBytesSoFar = fileLength;
+        if (totalBytes != -1) {
+            mHeaderContentLength = Long.toString(totalBytes);
+        }
+        mHeaderETag = eTag;
+        mContinuingDownload = true;
+        mBytesCheckpointed = fileLength;
+    }
+
+    /**
+     * Returns the Range header that asks for the rest of the file.
+     */
+    public String getRangeHeader() {
+        return "bytes=" + mBytesSoFar + "-";
+    }
+
+    /**
+     * Counts bytes that have reached the destination.
+     */
+    public void addBytes(long count) {
+        mBytesSoFar += count;
+        mBytesThisSession += count;
+    }
+
+    /**
+     * Returns the length the server announced, or -1 if it did not.
+     *
+     * @throws NumberFormatException if the Content-Length is not a number
+     */
+    public long getContentLength() {
+        if (mHeaderContentLength == null) {
+            return -1;
+        }
+        return Long.parseLong(mHeaderContentLength);
+    }
+
+    /**
+     * Returns true if the server announced a length and the transfer did not
+     * end there.
+     */
+    public boolean isLengthMismatched() {
+        return mHeaderContentLength != null && mBytesSoFar != getContentLength();
+    }
+
+    /**
+     * Returns true if enough data and time have passed since the last
+     * checkpoint to store the progress again.
+     */
+    public boolean isCheckpointDue(long now) {
+        return mBytesSoFar - mBytesCheckpointed > Constants.MIN_CHECKPOINT_STEP
+                && now - mTimeLastCheckpoint > Constants.MIN_CHECKPOINT_TIME;
+    }
+
+    public void checkpointed(long now) {
+        mBytesCheckpointed = mBytesSoFar;
+        mTimeLastCheckpoint = now;
+    }
+
+    /**
+     * Returns true if enough data and time have passed since the last report
+     * to report progress again.
+     */
+    public boolean isNotificationDue(long now) {
+        return mBytesSoFar - mBytesNotified > Constants.MIN_PROGRESS_STEP
+                && now - mTimeLastNotification > Constants.MIN_PROGRESS_TIME;
+    }
+
+    public void notified(long now) {
+        mBytesNotified = mBytesSoFar;
+        mTimeLastNotification = now;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import com.google.android.vending.expansion.downloader.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A {@link DownloadTransport} on top of {@link HttpURLConnection}. The
+ * platform keeps connections alive in a pool of its own, so requests to the
+ * same host reuse them as long as every response body is read to the end.
+ */
+public class UrlConnectionTransport implements DownloadTransport {
+    private final String mUserAgent;
+    private final SSLSocketFactory mSslSocketFactory;
+
+    /**
+     * @param userAgent to report in the HTTP requests
+     * @param sslSocketFactory the factory for all HTTPS connections, or null
+     *            for the platform default. The same instance has to be used
+     *            for every request, or pooled connections and cached TLS
+     *            sessions are not shared between them.
+     */
+    public UrlConnectionTransport(String userAgent, SSLSocketFactory sslSocketFactory) {
+        mUserAgent = userAgent;
+        mSslSocketFactory = sslSocketFactory;
+    }
+
+    private class UrlConnectionRequest implements Request {
+        private final String mUri;
+        private final ArrayList<String[]> mHeaders = new ArrayList<String[]>();
+        private HttpURLConnection mConnection; // guarded by this
+        private InputStream mBody; // guarded by this
+        private boolean mAborted; // guarded by this
+        private volatile boolean mBodyFinished;
+
+        UrlConnectionRequest(String uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            mHeaders.add(new String[] {
+                    name, value
+            });
+        }
+
+        @Override
+        public Response execute(Proxy proxy) throws IOException {
+            URLConnection urlConnection;
+            try {
+                urlConnection = new URL(mUri).openConnection(proxy);
+            } catch (MalformedURLException ex) {
+                throw new IllegalArgumentException(ex.toString());
+            }
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                throw new IllegalArgumentException("not an HTTP URI: " + mUri);
+            }
+            HttpURLConnection connection = (HttpURLConnection) urlConnection;
+            connection.setConnectTimeout(Constants.SOCKET_TIMEOUT);
+            connection.setReadTimeout(Constants.SOCKET_TIMEOUT);
+            // redirects are followed by the download thread itself
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("User-Agent", mUserAgent);
+            // otherwise the platform asks for gzip and hides Content-Length
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            for (String[] header : mHeaders) {
+                connection.addRequestProperty(header[0], header[1]);
+            }
+            if (null != mSslSocketFactory && connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+            }
+            synchronized (this) {
+                if (mAborted) {
+                    throw new IOException("request aborted");
+                }
+                mConnection = connection;
+            }
+            int statusCode = connection.getResponseCode();
+            if (statusCode == -1) {
+                throw new IOException("invalid HTTP response");
+            }
+            return new UrlConnectionResponse(connection, statusCode);
+        }
+
+        @Override
+        public void abort() {
+            HttpURLConnection connection;
+            InputStream body;
+            synchronized (this) {
+                mAborted = true;
+                connection = mConnection;
+                body = mBody;
+            }
+            if (null == connection) {
+                return;
+            }
+            if (mBodyFinished) {
+                // closing a completely read body returns the connection to
+                // the pool; disconnecting would close it
+                try {
+                    body.close();
+                } catch (IOException ex) {
+                }
+            } else {
+                connection.disconnect();
+            }
+        }
+
+        private class UrlConnectionResponse implements Response {
+            private final HttpURLConnection mResponseConnection;
+            private final int mStatusCode;
+
+            UrlConnectionResponse(HttpURLConnection connection, int statusCode) {
+                mResponseConnection = connection;
+                mStatusCode = statusCode;
+            }
+
+            @Override
+            public int getStatusCode() {
+                return mStatusCode;
+            }
+
+            @Override
+            public String getFirstHeader(String name) {
+                return mResponseConnection.getHeaderField(name);
+            }
+
+            @Override
+            public ReadableByteChannel getBody() throws IOException {
+                InputStream body = mStatusCode >= 400 ? mResponseConnection.getErrorStream()
+                        : mResponseConnection.getInputStream();
+                if (null == body) {
+                    body = new ByteArrayInputStream(new byte[0]);
+                }
+                synchronized (UrlConnectionRequest.this) {
+                    mBody = body;
+                }
+                final ReadableByteChannel source = Channels.newChannel(body);
+                return new ReadableByteChannel() {
+                    @Override
+                    public int read(ByteBuffer dst) throws IOException {
+                        int bytesRead = source.read(dst);
+                        if (bytesRead == -1) {
+                            mBodyFinished = true;
+                        }
+                        return bytesRead;
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return source.isOpen();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        source.close();
+                    }
+                };
+            }
+        }
+    }
+
+    @Override
+    public Request newRequest(String uri) {
+        return new UrlConnectionRequest(uri);
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime) {
+        // the platform pool evicts idle connections on its own
+    }
+
+    @Override
+    public void close() {
+        // the platform pool is shared by the whole process
+    }
+}
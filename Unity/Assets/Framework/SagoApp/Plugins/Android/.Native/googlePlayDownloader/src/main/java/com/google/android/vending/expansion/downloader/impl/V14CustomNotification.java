@@ -32,6 +32,7 @@ public class V14CustomNotification implements DownloadNotification.ICustomNotifi
     long mCurrentKB = -1;
     long mTimeRemaining;
     PendingIntent mPendingIntent;
+    Notification.Builder mNotificationBuilder;
 
     @Override
     public void setIcon(int icon) {
@@ -59,7 +60,11 @@ public class V14CustomNotification implements DownloadNotification.ICustomNotifi
 
     @Override
     public Notification.Builder updateNotification(Context c) {
-        Notification.Builder builder = new Notification.Builder(c);
+        // every field is set again below, so one builder serves every update
+        if (mNotificationBuilder == null) {
+            mNotificationBuilder = new Notification.Builder(c);
+        }
+        Notification.Builder builder = mNotificationBuilder;
         builder.setContentTitle(mTitle);
         if (mTotalKB > 0 && -1 != mCurrentKB) {
             builder.setProgress((int) (mTotalKB >> 8), (int) (mCurrentKB >> 8), false);
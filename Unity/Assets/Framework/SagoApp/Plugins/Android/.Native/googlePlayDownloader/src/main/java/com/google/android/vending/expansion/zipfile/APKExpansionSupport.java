@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.zipfile;
+
+import com.google.android.vending.expansion.downloader.Helpers;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Opens the downloaded expansion files of the application.
+ */
+public class APKExpansionSupport {
+
+    /**
+     * Returns the paths of the main and patch expansion files that exist, in
+     * that order.
+     *
+     * @param mainVersion the version of the main file, or 0 for none
+     * @param patchVersion the version of the patch file, or 0 for none
+     */
+    public static String[] getAPKExpansionFiles(Context ctx, int mainVersion,
+            int patchVersion) {
+        ArrayList<String> files = new ArrayList<String>();
+        if (mainVersion > 0) {
+            addIfExists(files, Helpers.generateSaveFileName(ctx,
+                    Helpers.getExpansionAPKFileName(ctx, true, mainVersion)));
+        }
+        if (patchVersion > 0) {
+            addIfExists(files, Helpers.generateSaveFileName(ctx,
+                    Helpers.getExpansionAPKFileName(ctx, false, patchVersion)));
+        }
+        return files.toArray(new String[files.size()]);
+    }
+
+    /**
+     * Returns an index of the main expansion file with the patch file laid
+     * over it, or null if neither exists.
+     */
+    public static ZipResourceFile getAPKExpansionZipFile(Context ctx, int mainVersion,
+            int patchVersion) throws IOException {
+        String[] files = getAPKExpansionFiles(ctx, mainVersion, patchVersion);
+        if (files.length == 0) {
+            return null;
+        }
+        ZipResourceFile zipFile = new ZipResourceFile(files[0]);
+        for (int i = 1; i < files.length; i++) {
+            zipFile.addPatchFile(files[i]);
+        }
+        return zipFile;
+    }
+
+    /**
+     * Returns the entry index the downloader wrote for an expansion file, or
+     * null if there is none or it no longer matches the file. Callers then
+     * fall back to {@link #getAPKExpansionZipFile}.
+     *
+     * @param mainFile true for the main file, false for the patch file
+     * @param versionCode the version of the expansion file
+     */
+    public static ZipIndex getAPKExpansionIndex(Context ctx, boolean mainFile,
+            int versionCode) {
+        String fileName = Helpers.getExpansionAPKFileName(ctx, mainFile, versionCode);
+        return ZipIndex.open(new File(Helpers.generateSaveFileName(ctx, fileName)),
+                ZipIndex.getIndexFile(ctx, fileName), null);
+    }
+
+    private static void addIfExists(ArrayList<String> files, String path) {
+        if (new File(path).isFile()) {
+            files.add(path);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.expansion.zipfile;
+
+import com.google.android.vending.expansion.zipfile.ZipResourceFile.ZipEntryRO;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A compact index of the entries of one zip file, stored next to the
+ * application's private files. The downloader writes it once a file is
+ * complete; readers then map it whole and look entries up by a hash of their
+ * path, without reading the zip file's central directory.
+ * <p>
+ * The index file holds a header, followed by fixed-size records sorted by
+ * path hash:
+ *
+ * <pre>
+ * int magic, int version, long zip length, long zip modification time,
+ * int record count, short key length, key bytes (UTF-8), padding to 8 bytes
+ * { long path hash, long data offset, long compressed length,
+ *   long uncompressed length, int crc32, int method } * record count
+ * </pre>
+ *
+ * The key is the ETag the zip file was downloaded with. An index only
+ * applies to a zip file of the same length and modification time.
+ */
+public class ZipIndex {
+    private static final String LOG_TAG = "ZipIndex";
+
+    private static final int MAGIC = 0x5a494458; // "ZIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4 + 2;
+    private static final int RECORD_LENGTH = 8 + 8 + 8 + 8 + 4 + 4;
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ByteBuffer mBuffer;
+    private final String mKey;
+    private final int mRecordCount;
+    private final int mRecordsStart;
+
+    private ZipIndex(ByteBuffer buffer, String key, int recordCount, int recordsStart) {
+        mBuffer = buffer;
+        mKey = key;
+        mRecordCount = recordCount;
+        mRecordsStart = recordsStart;
+    }
+
+    /**
+     * Returns the index file for an expansion file of the given name.
+     */
+    public static File getIndexFile(Context c, String zipFileName) {
+        return new File(c.getFilesDir(), new File(zipFileName).getName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the UTF-8 bytes of a path, which is
+     * what the records are sorted and looked up by.
+     */
+    public static long hashPath(String path) {
+        long hash = FNV_OFFSET_BASIS;
+        int length = path.length();
+        for (int i = 0; i < length; i++) {
+            char c = path.charAt(i);
+            if (c < 0x80) {
+                hash = (hash ^ c) * FNV_PRIME;
+            } else {
+                // rare in asset paths, so the general encoder is good enough
+                try {
+                    byte[] rest = path.substring(i).getBytes("UTF-8");
+                    for (byte b : rest) {
+                        hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                    }
+                } catch (java.io.UnsupportedEncodingException ex) {
+                    throw new AssertionError(ex);
+                }
+                break;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Opens the index of a zip file.
+     *
+     * @param zipFile the zip file the index was written for
+     * @param indexFile the index file
+     * @param key the ETag the zip file must have been downloaded with, or null
+     *            to accept any
+     * @return the index, or null if it does not exist, cannot be read or no
+     *         longer matches the zip file
+     */
+    public static ZipIndex open(File zipFile, File indexFile, String key) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_LENGTH
+                    || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION
+                    || buffer.getLong(8) != zipFile.length()
+                    || buffer.getLong(16) != zipFile.lastModified()) {
+                return null;
+            }
+            int recordCount = buffer.getInt(24);
+            int keyLength = buffer.getShort(28) & 0xffff;
+            int recordsStart = align(HEADER_LENGTH + keyLength);
+            if (recordCount < 0
+                    || buffer.limit() != recordsStart + (long) recordCount * RECORD_LENGTH) {
+                return null;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(HEADER_LENGTH);
+            buffer.get(keyBytes);
+            String storedKey = new String(keyBytes, "UTF-8");
+            if (null != key && !key.equals(storedKey)) {
+                return null;
+            }
+            return new ZipIndex(buffer, storedKey, recordCount, recordsStart);
+        } catch (IOException ex) {
+            Log.w(LOG_TAG, "IOException while opening " + indexFile + ": " + ex);
+            return null;
+        } finally {
+            if (null != raf) {
+                try {
+                    // the mapping stays valid after the file is closed
+                    raf.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index of a zip file. The index is written to a temporary
+     * file first and renamed, so readers never see a partial index.
+     *
+     * @param zipFile the complete zip file
+     * @param indexFile where to write the index
+     * @param key the ETag the zip file was downloaded with, or null
+     * @throws IOException if the zip file cannot be read, or two of its paths
+     *             have the same hash
+     */
+    public static void write(File zipFile, File indexFile, String key) throws IOException {
+        ZipEntryRO[] entries;
+        ZipResourceFile zip = new ZipResourceFile(zipFile.getPath());
+        try {
+            entries = zip.getAllEntries();
+            final long[] hashes = new long[entries.length];
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                hashes[i] = hashPath(entries[i].mEntryName);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long l = hashes[lhs];
+                    long r = hashes[rhs];
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+
+            byte[] keyBytes = (null == key ? "" : key).getBytes("UTF-8");
+            if (keyBytes.length > 0xffff) {
+                throw new IOException("index key too long");
+            }
+            int recordsStart = align(HEADER_LENGTH + keyBytes.length);
+            ByteBuffer buffer = ByteBuffer.allocate(recordsStart + entries.length
+                    * RECORD_LENGTH);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(zipFile.length());
+            buffer.putLong(zipFile.lastModified());
+            buffer.putInt(entries.length);
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.position(recordsStart);
+            for (int i = 0; i < order.length; i++) {
+                int e = order[i];
+                if (i > 0 && hashes[e] == hashes[order[i - 1]]) {
+                    throw new IOException("hash collision between "
+                            + entries[order[i - 1]].mEntryName + " and " + entries[e].mEntryName);
+                }
+                ZipEntryRO entry = entries[e];
+                buffer.putLong(hashes[e]);
+                buffer.putLong(entry.getOffset());
+                buffer.putLong(entry.mCompressedLength);
+                buffer.putLong(entry.mUncompressedLength);
+                buffer.putInt((int) entry.mCrc32);
+                buffer.putInt(entry.mMethod);
+            }
+
+            File tempFile = new File(indexFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(buffer.array());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+                throw new IOException("unable to rename " + tempFile);
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    /**
+     * Returns the ETag the zip file was downloaded with, or an empty string
+     * if it is not known.
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Finds the record of an entry.
+     *
+     * @param path the path of the entry in the zip file
+     * @return the record number, or -1 if there is no such entry
+     */
+    public int find(String path) {
+        long hash = hashPath(path);
+        int low = 0;
+        int high = mRecordCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midHash = mBuffer.getLong(mRecordsStart + mid * RECORD_LENGTH);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset of the data of a record in the zip file.
+     */
+    public long getOffset(int record) {
+        return mBuffer.getLong(mRecordsStart + record * RECORD_LENGTH + 8);
+    }
+
+    public long getCompressedLength(int record) {
+        return mBuffer.getLong(mRecordsStart + record * RECORD_LENGTH + 16);
+    }
+
+    public long getUncompressedLength(int record) {
+        return mBuffer.getLong(mRecordsStart + record * RECORD_LENGTH + 24);
+    }
+
+    public long getCrc32(int record) {
+        return mBuffer.getInt(mRecordsStart + record * RECORD_LENGTH + 32) & 0xffffffffL;
+    }
+
+    public int getMethod(int record) {
+        return mBuffer.getInt(mRecordsStart + record * RECORD_LENGTH + 36);
+    }
+
+    public boolean isStored(int record) {
+        return getMethod(record) == ZipResourceFile.COMPRESSION_STORED;
+    }
+}
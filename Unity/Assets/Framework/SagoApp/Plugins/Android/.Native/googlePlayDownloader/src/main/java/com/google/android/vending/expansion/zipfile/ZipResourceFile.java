@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.zipfile;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Read-only access to the entries of one or more zip files, such as the
+ * main and patch expansion files. The central directory of every file is read
+ * once into an index; entries of files added later replace those of the same
+ * name. The files are memory-mapped in windows, so an entry that is stored
+ * without compression can be returned as a slice of the mapping, without
+ * seeking or copying.
+ */
+public class ZipResourceFile {
+    static final String LOG_TAG = "ZipResourceFile";
+    static final boolean LOGV = false;
+
+    public static final int COMPRESSION_STORED = 0;
+    public static final int COMPRESSION_DEFLATED = 8;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_LENGTH = 22;
+    private static final int MAX_COMMENT_LENGTH = 65535;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int CD_LENGTH = 46;
+    private static final int LFH_SIGNATURE = 0x04034b50;
+    private static final int LFH_LENGTH = 30;
+
+    /** The size of the windows the zip files are mapped in */
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * An entry of the index.
+     */
+    public static final class ZipEntryRO {
+        public final String mEntryName;
+        public final int mMethod;
+        public final long mCrc32;
+        public final long mCompressedLength;
+        public final long mUncompressedLength;
+        public final long mLocalHeaderOffset;
+        final MappedZip mZip;
+        private long mOffset = -1;
+
+        ZipEntryRO(MappedZip zip, String entryName, int method, long crc32,
+                long compressedLength, long uncompressedLength, long localHeaderOffset) {
+            mZip = zip;
+            mEntryName = entryName;
+            mMethod = method;
+            mCrc32 = crc32;
+            mCompressedLength = compressedLength;
+            mUncompressedLength = uncompressedLength;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * Returns the path of the zip file that holds this entry.
+         */
+        public String getZipFileName() {
+            return mZip.mFile.getPath();
+        }
+
+        public boolean isStored() {
+            return mMethod == COMPRESSION_STORED;
+        }
+
+        /**
+         * Returns the offset of the data of this entry in its zip file, for
+         * readers that open the file themselves.
+         */
+        public synchronized long getOffset() throws IOException {
+            if (mOffset < 0) {
+                // the local header may have a different extra field than the
+                // central directory, so its own lengths have to be used
+                ByteBuffer header = mZip.map(mLocalHeaderOffset, LFH_LENGTH);
+                if (header.getInt(0) != LFH_SIGNATURE) {
+                    throw new IOException("bad local file header for " + mEntryName);
+                }
+                int nameLength = header.getShort(26) & 0xffff;
+                int extraLength = header.getShort(28) & 0xffff;
+                mOffset = mLocalHeaderOffset + LFH_LENGTH + nameLength + extraLength;
+            }
+            return mOffset;
+        }
+    }
+
+    /**
+     * A zip file and the windows of it that are mapped so far.
+     */
+    static final class MappedZip {
+        final File mFile;
+        final long mLength;
+        private final RandomAccessFile mRandomAccessFile;
+        private final FileChannel mChannel;
+        private final MappedByteBuffer[] mWindows;
+
+        MappedZip(File file) throws IOException {
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "r");
+            mChannel = mRandomAccessFile.getChannel();
+            mLength = mChannel.size();
+            mWindows = new MappedByteBuffer[(int) ((mLength + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+        }
+
+        /**
+         * Returns a little-endian, read-only view of part of the file.
+         */
+        synchronized ByteBuffer map(long offset, long length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > mLength) {
+                throw new IOException("range outside of " + mFile);
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("range too large to map in " + mFile);
+            }
+            int window = (int) (offset / WINDOW_SIZE);
+            long windowStart = window * WINDOW_SIZE;
+            ByteBuffer buffer;
+            if (offset + length <= windowStart + WINDOW_SIZE) {
+                if (null == mWindows[window]) {
+                    mWindows[window] = mChannel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(WINDOW_SIZE, mLength - windowStart));
+                }
+                buffer = mWindows[window].duplicate();
+                int position = (int) (offset - windowStart);
+                buffer.limit(position + (int) length);
+                buffer.position(position);
+                buffer = buffer.slice();
+            } else {
+                // crosses a window boundary, so it gets a mapping of its own
+                buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void close() {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException ex) {
+                Log.w(LOG_TAG, "IOException while closing " + mFile + ": " + ex);
+            }
+        }
+    }
+
+    private final HashMap<String, ZipEntryRO> mEntries = new HashMap<String, ZipEntryRO>();
+    private final ArrayList<MappedZip> mZips = new ArrayList<MappedZip>();
+
+    /**
+     * @param zipFileName the path of the first zip file, usually the main
+     *            expansion file
+     */
+    public ZipResourceFile(String zipFileName) throws IOException {
+        addPatchFile(zipFileName);
+    }
+
+    /**
+     * Adds the entries of another zip file to the index. Its entries replace
+     * those of the same name from the files added before it.
+     */
+    public void addPatchFile(String zipFileName) throws IOException {
+        MappedZip zip = new MappedZip(new File(zipFileName));
+        try {
+            readCentralDirectory(zip);
+        } catch (IOException ex) {
+            zip.close();
+            throw ex;
+        }
+        mZips.add(zip);
+    }
+
+    private void readCentralDirectory(MappedZip zip) throws IOException {
+        if (zip.mLength < EOCD_LENGTH) {
+            throw new IOException("not a zip file: " + zip.mFile);
+        }
+        // the end of central directory record is followed by a comment of
+        // up to 64k
+        int searchLength = (int) Math.min(zip.mLength, EOCD_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = zip.map(zip.mLength - searchLength, searchLength);
+        int eocd = -1;
+        for (int i = searchLength - EOCD_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("end of central directory not found in " + zip.mFile);
+        }
+        int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        ByteBuffer directory = zip.map(directoryOffset, directorySize);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CD_LENGTH > directory.limit()
+                    || directory.getInt(position) != CD_SIGNATURE) {
+                throw new IOException("bad central directory in " + zip.mFile);
+            }
+            int method = directory.getShort(position + 10) & 0xffff;
+            long crc32 = directory.getInt(position + 16) & 0xffffffffL;
+            long compressedLength = directory.getInt(position + 20) & 0xffffffffL;
+            long uncompressedLength = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+
+            byte[] name = new byte[nameLength];
+            directory.position(position + CD_LENGTH);
+            directory.get(name);
+            String entryName = new String(name, "UTF-8");
+            mEntries.put(entryName, new ZipEntryRO(zip, entryName, method, crc32,
+                    compressedLength, uncompressedLength, localHeaderOffset));
+
+            position += CD_LENGTH + nameLength + extraLength + commentLength;
+        }
+        if (LOGV) {
+            Log.v(LOG_TAG, "indexed " + entryCount + " entries of " + zip.mFile);
+        }
+    }
+
+    /**
+     * Returns the entry for the given path, or null if there is none.
+     */
+    public ZipEntryRO getEntry(String assetPath) {
+        return mEntries.get(assetPath);
+    }
+
+    public ZipEntryRO[] getAllEntries() {
+        Collection<ZipEntryRO> entries = mEntries.values();
+        return entries.toArray(new ZipEntryRO[entries.size()]);
+    }
+
+    /**
+     * Returns the data of an entry that is stored without compression, as a
+     * read-only slice of the mapped zip file. The returned buffer is not
+     * shared, so its position and limit may be changed freely.
+     *
+     * @param assetPath the path of the entry in the zip file
+     * @return the data of the entry, or null if there is no such entry
+     * @throws IOException if the entry is compressed or cannot be mapped
+     */
+    public ByteBuffer getBuffer(String assetPath) throws IOException {
+        ZipEntryRO entry = mEntries.get(assetPath);
+        if (null == entry) {
+            return null;
+        }
+        if (!entry.isStored()) {
+            throw new IOException(assetPath + " is compressed and cannot be mapped");
+        }
+        return entry.mZip.map(entry.getOffset(), entry.mUncompressedLength);
+    }
+
+    /**
+     * Closes the zip files. Buffers that were already returned stay valid.
+     */
+    public void close() {
+        for (MappedZip zip : mZips) {
+            zip.close();
+        }
+        mZips.clear();
+        mEntries.clear();
+    }
+}
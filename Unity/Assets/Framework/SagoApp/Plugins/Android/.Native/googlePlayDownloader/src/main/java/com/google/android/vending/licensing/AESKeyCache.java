@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.licensing;
+
+import com.google.android.vending.licensing.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.KeySpec;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives the keys used by {@link AESObfuscator} on a background thread and
+ * keeps them for the life of the process. Deriving a key takes 1024 rounds of
+ * PBKDF, so it is done once per salt, application and device, and callers
+ * that know the inputs early can start it with {@link #prefetch} well before
+ * the key is needed.
+ */
+public class AESKeyCache {
+    private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
+    private static final int ITERATIONS = 1024;
+    private static final int KEY_LENGTH = 256;
+
+    private static final HashMap<String, Future<SecretKey>> sKeys =
+            new HashMap<String, Future<SecretKey>>();
+    // a single thread that goes away when there is nothing left to derive
+    private static final ExecutorService sExecutor = new ThreadPoolExecutor(0, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Starts deriving a key in the background unless it is already known or
+     * on its way.
+     *
+     * @return the key, once it has been derived
+     */
+    public static synchronized Future<SecretKey> prefetch(byte[] salt,
+            String applicationId, String deviceId) {
+        String cacheKey = Base64.encode(salt) + '|' + applicationId + '|' + deviceId;
+        Future<SecretKey> key = sKeys.get(cacheKey);
+        if (null == key) {
+            key = sExecutor.submit(new Derivation(salt.clone(), applicationId + deviceId));
+            sKeys.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the key, waiting for it to be derived if necessary.
+     */
+    public static SecretKey get(Future<SecretKey> key) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return key.get();
+                } catch (InterruptedException e) {
+                    // the key is needed either way
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // This can't happen on a compatible Android device.
+                    throw new RuntimeException("Invalid environment", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Derivation implements Callable<SecretKey> {
+        private final byte[] mSalt;
+        private final String mPassword;
+
+        Derivation(byte[] salt, String password) {
+            mSalt = salt;
+            mPassword = password;
+        }
+
+        @Override
+        public SecretKey call() throws GeneralSecurityException {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
+            KeySpec keySpec = new PBEKeySpec(mPassword.toCharArray(), mSalt, ITERATIONS,
+                    KEY_LENGTH);
+            SecretKey tmp = factory.generateSecret(keySpec);
+            return new SecretKeySpec(tmp.getEncoded(), "AES");
+        }
+    }
+}
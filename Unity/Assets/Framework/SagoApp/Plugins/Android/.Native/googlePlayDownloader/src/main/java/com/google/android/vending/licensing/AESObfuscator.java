@@ -21,28 +21,27 @@ import com.google.android.vending.licensing.util.Base64DecoderException;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
-import java.security.spec.KeySpec;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
- * An Obfuscator that uses AES to encrypt data.
+ * An Obfuscator that uses AES to encrypt data. The key comes from
+ * {@link AESKeyCache}, so constructing an obfuscator is cheap; the ciphers are
+ * set up the first time data is (un)obfuscated.
  */
 public class AESObfuscator implements Obfuscator {
     private static final String UTF8 = "UTF-8";
-    private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
     private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
     private static final byte[] IV =
         { 16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74 };
     private static final String header = "com.android.vending.licensing.AESObfuscator-1|";
 
+    private final Future<SecretKey> mKey;
     private Cipher mEncryptor;
     private Cipher mDecryptor;
 
@@ -53,26 +52,34 @@ public class AESObfuscator implements Obfuscator {
      *    create this unique identifier.
      */
     public AESObfuscator(byte[] salt, String applicationId, String deviceId) {
+        mKey = AESKeyCache.prefetch(salt, applicationId, deviceId);
+    }
+
+    /**
+     * Sets up the ciphers, waiting for the key if it is still being derived.
+     */
+    private void initCiphers() {
+        if (null != mEncryptor) {
+            return;
+        }
+        SecretKey secret = AESKeyCache.get(mKey);
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
-            KeySpec keySpec =   
-                new PBEKeySpec((applicationId + deviceId).toCharArray(), salt, 1024, 256);
-            SecretKey tmp = factory.generateSecret(keySpec);
-            SecretKey secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-            mEncryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mEncryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
+            Cipher encryptor = Cipher.getInstance(CIPHER_ALGORITHM);
+            encryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
             mDecryptor = Cipher.getInstance(CIPHER_ALGORITHM);
             mDecryptor.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(IV));
+            mEncryptor = encryptor;
         } catch (GeneralSecurityException e) {
             // This can't happen on a compatible Android device.
             throw new RuntimeException("Invalid environment", e);
         }
     }
 
-    public String obfuscate(String original, String key) {
+    public synchronized String obfuscate(String original, String key) {
         if (original == null) {
             return null;
         }
+        initCiphers();
         try {
             // Header is appended as an integrity check
             return Base64.encode(mEncryptor.doFinal((header + key + original).getBytes(UTF8)));
@@ -83,10 +90,12 @@ public class AESObfuscator implements Obfuscator {
         }
     }
 
-    public String unobfuscate(String obfuscated, String key) throws ValidationException {
+    public synchronized String unobfuscate(String obfuscated, String key)
+            throws ValidationException {
         if (obfuscated == null) {
             return null;
         }
+        initCiphers();
         try {
             String result = new String(mDecryptor.doFinal(Base64.decode(obfuscated)), UTF8);
             // Check for presence of header. This serves as a final integrity check, for cases
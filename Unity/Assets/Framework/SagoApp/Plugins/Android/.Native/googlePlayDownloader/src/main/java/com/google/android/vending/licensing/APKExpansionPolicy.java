@@ -20,12 +20,17 @@ package com.google.android.vending.licensing;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 
+import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64DecoderException;
+
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.util.Log;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +60,8 @@ public class APKExpansionPolicy implements Policy {
     private static final String PREF_RETRY_UNTIL = "retryUntil";
     private static final String PREF_MAX_RETRIES = "maxRetries";
     private static final String PREF_RETRY_COUNT = "retryCount";
+    private static final String PREF_LICENSE_DATA = "licenseData";
+    private static final String PREF_LICENSE_SIGNATURE = "licenseSignature";
     private static final String DEFAULT_VALIDITY_TIMESTAMP = "0";
     private static final String DEFAULT_RETRY_UNTIL = "0";
     private static final String DEFAULT_MAX_RETRIES = "0";
@@ -62,6 +69,10 @@ public class APKExpansionPolicy implements Policy {
 
     private static final long MILLIS_PER_MINUTE = 60 * 1000;
 
+    // Server response codes of a license that can be restored.
+    private static final int SERVER_LICENSED = 0x0;
+    private static final int SERVER_LICENSED_OLD_KEY = 0x2;
+
     private long mValidityTimestamp;
     private long mRetryUntil;
     private long mMaxRetries;
@@ -69,6 +80,8 @@ public class APKExpansionPolicy implements Policy {
     private long mLastResponseTime = 0;
     private int mLastResponse;
     private PreferenceObfuscator mPreferences;
+    private final String mPackageName;
+    private final String mVersionCode;
     private Vector<String> mExpansionURLs = new Vector<String>();
     private Vector<String> mExpansionFileNames = new Vector<String>();
     private Vector<Long> mExpansionFileSizes = new Vector<Long>();
@@ -96,6 +109,16 @@ public class APKExpansionPolicy implements Policy {
         mRetryUntil = Long.parseLong(mPreferences.getString(PREF_RETRY_UNTIL, DEFAULT_RETRY_UNTIL));
         mMaxRetries = Long.parseLong(mPreferences.getString(PREF_MAX_RETRIES, DEFAULT_MAX_RETRIES));
         mRetryCount = Long.parseLong(mPreferences.getString(PREF_RETRY_COUNT, DEFAULT_RETRY_COUNT));
+        mPackageName = context.getPackageName();
+        String versionCode;
+        try {
+            versionCode = String.valueOf(context.getPackageManager()
+                    .getPackageInfo(mPackageName, 0).versionCode);
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "Package not found. could not get version code.");
+            versionCode = "";
+        }
+        mVersionCode = versionCode;
     }
 
     /**
@@ -139,6 +162,7 @@ public class APKExpansionPolicy implements Policy {
         if (response == Policy.LICENSED) {
             // Update server policy data
             Map<String, String> extras = decodeExtras(rawData.extra);
+            setLicense(rawData.signedData, rawData.signature);
             mLastResponse = response;
             setValidityTimestamp(Long.toString(System.currentTimeMillis() + MILLIS_PER_MINUTE));
             Set<String> keys = extras.keySet();
@@ -149,15 +173,8 @@ public class APKExpansionPolicy implements Policy {
                     setRetryUntil(extras.get(key));
                 } else if (key.equals("GR")) {
                     setMaxRetries(extras.get(key));
-                } else if (key.startsWith("FILE_URL")) {
-                    int index = Integer.parseInt(key.substring("FILE_URL".length())) - 1;
-                    setExpansionURL(index, extras.get(key));
-                } else if (key.startsWith("FILE_NAME")) {
-                    int index = Integer.parseInt(key.substring("FILE_NAME".length())) - 1;
-                    setExpansionFileName(index, extras.get(key));
-                } else if (key.startsWith("FILE_SIZE")) {
-                    int index = Integer.parseInt(key.substring("FILE_SIZE".length())) - 1;
-                    setExpansionFileSize(index, Long.parseLong(extras.get(key)));
+                } else {
+                    setExpansionFile(key, extras.get(key));
                 }
             }
         } else if (response == Policy.NOT_LICENSED) {
@@ -165,12 +182,132 @@ public class APKExpansionPolicy implements Policy {
             setValidityTimestamp(DEFAULT_VALIDITY_TIMESTAMP);
             setRetryUntil(DEFAULT_RETRY_UNTIL);
             setMaxRetries(DEFAULT_MAX_RETRIES);
+            setLicense(null, null);
         }
 
         setLastResponse(response);
         mPreferences.commit();
     }
 
+    /**
+     * Sets the expansion file URL, name or size from one of the FILE_ extras
+     * of a LICENSED response; other extras are ignored.
+     */
+    private void setExpansionFile(String key, String value) {
+        if (key.startsWith("FILE_URL")) {
+            int index = Integer.parseInt(key.substring("FILE_URL".length())) - 1;
+            setExpansionURL(index, value);
+        } else if (key.startsWith("FILE_NAME")) {
+            int index = Integer.parseInt(key.substring("FILE_NAME".length())) - 1;
+            setExpansionFileName(index, value);
+        } else if (key.startsWith("FILE_SIZE")) {
+            int index = Integer.parseInt(key.substring("FILE_SIZE".length())) - 1;
+            setExpansionFileSize(index, Long.parseLong(value));
+        }
+    }
+
+    /**
+     * Keeps the signed LICENSED response, so that {@link #restoreLicense} can
+     * use it without asking the server, or forgets it when both are null. You
+     * must manually call PreferenceObfuscator.commit() to commit these
+     * changes to disk.
+     *
+     * @param signedData the response as signed by the server
+     * @param signature the Base64-encoded signature of the response
+     */
+    private void setLicense(String signedData, String signature) {
+        mPreferences.putString(PREF_LICENSE_DATA, signedData);
+        mPreferences.putString(PREF_LICENSE_SIGNATURE, signature);
+    }
+
+    /**
+     * Forgets the LICENSED response kept for {@link #restoreLicense}, for
+     * example because its expansion URLs no longer work.
+     */
+    public void clearLicense() {
+        setLicense(null, null);
+        mPreferences.commit();
+    }
+
+    /**
+     * Restores the expansion files of the last LICENSED response without
+     * asking the licensing service. This only works if the response was for
+     * this version of the application, its signature still checks out, and
+     * it is inside its validity period (VT), or inside its grace period (GT)
+     * when useGracePeriod is set.
+     * <p>
+     * The response is replayed, so its nonce is not checked; the signature
+     * binds it to the package and version, and the preferences it is kept in
+     * can only be read on this device.
+     *
+     * @param encodedPublicKey Base64-encoded RSA public key
+     * @param useGracePeriod true if the licensing service could not be
+     *            reached
+     * @return true if the expansion files were restored
+     */
+    public boolean restoreLicense(String encodedPublicKey, boolean useGracePeriod) {
+        String signedData = mPreferences.getString(PREF_LICENSE_DATA, null);
+        String signature = mPreferences.getString(PREF_LICENSE_SIGNATURE, null);
+        if (null == signedData || null == signature) {
+            return false;
+        }
+        ResponseData data;
+        try {
+            if (!SignatureVerifier.forKey(encodedPublicKey).verify(signedData.getBytes(),
+                    Base64.decode(signature))) {
+                Log.w(TAG, "Signature of the kept license response does not match.");
+                return false;
+            }
+            data = ResponseData.parse(signedData);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Could not verify the kept license response.", e);
+            return false;
+        } catch (Base64DecoderException e) {
+            Log.w(TAG, "Could not Base64-decode the kept license signature.");
+            return false;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Could not parse the kept license response.");
+            return false;
+        }
+        if ((data.responseCode != SERVER_LICENSED && data.responseCode != SERVER_LICENSED_OLD_KEY)
+                || !mPackageName.equals(data.packageName)
+                || !mVersionCode.equals(data.versionCode)) {
+            return false;
+        }
+
+        Map<String, String> extras = decodeExtras(data.extra);
+        long validUntil = parseTimestamp(extras.get("VT"));
+        if (useGracePeriod) {
+            validUntil = Math.max(validUntil, parseTimestamp(extras.get("GT")));
+        }
+        if (System.currentTimeMillis() > validUntil) {
+            return false;
+        }
+        try {
+            for (Map.Entry<String, String> extra : extras.entrySet()) {
+                setExpansionFile(extra.getKey(), extra.getValue());
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid expansion file in the kept license response.");
+            mExpansionURLs.clear();
+            mExpansionFileNames.clear();
+            mExpansionFileSizes.clear();
+            return false;
+        }
+        return true;
+    }
+
+    private static long parseTimestamp(String timestamp) {
+        if (null == timestamp) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Set the last license response received from the server and add to
      * preferences. You must manually call PreferenceObfuscator.commit() to
@@ -280,7 +417,7 @@ public class APKExpansionPolicy implements Policy {
     /**
      * Gets the count of expansion URLs. Since expansionURLs are not committed
      * to preferences, this will return zero if there has been no LVL fetch
-     * in the current session.
+     * or {@link #restoreLicense} in the current session.
      * 
      * @return the number of expansion URLs. (0,1,2)
      */
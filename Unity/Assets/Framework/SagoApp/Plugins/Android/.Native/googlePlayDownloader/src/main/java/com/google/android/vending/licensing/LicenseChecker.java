@@ -31,17 +31,9 @@ import android.os.RemoteException;
 import android.provider.Settings.Secure;
 import android.util.Log;
 
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
 
 /**
  * Client library for Android Market license verifications.
@@ -57,17 +49,26 @@ import java.util.Set;
 public class LicenseChecker implements ServiceConnection {
     private static final String TAG = "LicenseChecker";
 
-    private static final String KEY_FACTORY_ALGORITHM = "RSA";
-
     // Timeout value (in milliseconds) for calls to service.
     private static final int TIMEOUT_MS = 10 * 1000;
 
     private static final SecureRandom RANDOM = new SecureRandom();
     private static final boolean DEBUG_LICENSE_ERROR = false;
 
+    // Default time to keep the licensing service bound after the last check.
+    private static final long DEFAULT_BINDING_LINGER_MS = 30 * 1000;
+
+    // Binding states. The state, the service and the check in progress are
+    // only touched on the handler thread, so none of them need a lock.
+    private static final int STATE_UNBOUND = 0;
+    private static final int STATE_BINDING = 1;
+    private static final int STATE_BOUND = 2;
+    private static final int STATE_LINGERING = 3;
+
     private ILicensingService mService;
+    private int mState = STATE_UNBOUND;
 
-    private PublicKey mPublicKey;
+    private final SignatureVerifier mVerifier;
     private final Context mContext;
     private final Policy mPolicy;
     /**
@@ -77,8 +78,35 @@ public class LicenseChecker implements ServiceConnection {
     private Handler mHandler;
     private final String mPackageName;
     private final String mVersionCode;
-    private final Set<LicenseValidator> mChecksInProgress = new HashSet<LicenseValidator>();
-    private final Queue<LicenseValidator> mPendingChecks = new LinkedList<LicenseValidator>();
+    private final long mBindingLinger;
+
+    /**
+     * The check every caller is waiting on, and the callbacks it reports to.
+     * Package and version are the same for every check of a LicenseChecker,
+     * so callers that arrive while a check is in progress join it instead of
+     * asking the service again.
+     */
+    private LicenseValidator mCheck;
+    private CallbackList mCheckCallbacks;
+    private boolean mCheckSent;
+
+    private final Runnable mOnTimeout = new Runnable() {
+        public void run() {
+            if (null != mCheck) {
+                Log.i(TAG, "Check timed out.");
+                handleServiceConnectionError(mCheck);
+                finishCheck();
+            }
+        }
+    };
+
+    private final Runnable mUnbind = new Runnable() {
+        public void run() {
+            if (mState == STATE_LINGERING) {
+                cleanupService();
+            }
+        }
+    };
 
     /**
      * @param context a Context
@@ -87,41 +115,31 @@ public class LicenseChecker implements ServiceConnection {
      * @throws IllegalArgumentException if encodedPublicKey is invalid
      */
     public LicenseChecker(Context context, Policy policy, String encodedPublicKey) {
+        this(context, policy, encodedPublicKey, DEFAULT_BINDING_LINGER_MS);
+    }
+
+    /**
+     * @param context a Context
+     * @param policy implementation of Policy
+     * @param encodedPublicKey Base64-encoded RSA public key
+     * @param bindingLingerMs how long to stay bound to the licensing service
+     *            after the last check, so that checks that follow soon after
+     *            do not bind again; 0 unbinds right away
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    public LicenseChecker(Context context, Policy policy, String encodedPublicKey,
+            long bindingLingerMs) {
         mContext = context;
         mPolicy = policy;
-        mPublicKey = generatePublicKey(encodedPublicKey);
+        mVerifier = SignatureVerifier.forKey(encodedPublicKey);
         mPackageName = mContext.getPackageName();
         mVersionCode = getVersionCode(context, mPackageName);
+        mBindingLinger = bindingLingerMs;
         HandlerThread handlerThread = new HandlerThread("background thread");
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper());
     }
 
-    /**
-     * Generates a PublicKey instance from a string containing the
-     * Base64-encoded public key.
-     * 
-     * @param encodedPublicKey Base64-encoded public key
-     * @throws IllegalArgumentException if encodedPublicKey is invalid
-     */
-    private static PublicKey generatePublicKey(String encodedPublicKey) {
-        try {
-            byte[] decodedKey = Base64.decode(encodedPublicKey);
-            KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
-
-            return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
-        } catch (NoSuchAlgorithmException e) {
-            // This won't happen in an Android-compatible environment.
-            throw new RuntimeException(e);
-        } catch (Base64DecoderException e) {
-            Log.e(TAG, "Could not decode from Base64.");
-            throw new IllegalArgumentException(e);
-        } catch (InvalidKeySpecException e) {
-            Log.e(TAG, "Invalid key specification.");
-            throw new IllegalArgumentException(e);
-        }
-    }
-
     /**
      * Checks if the user should have access to the app.  Binds the service if necessary.
      * <p>
@@ -131,85 +149,156 @@ public class LicenseChecker implements ServiceConnection {
      * <p>
      * source string: "com.android.vending.licensing.ILicensingService"
      * <p>
+     * Unless the policy has a cached response, the callback is called on the
+     * checker's background thread. If a check is already in progress, the
+     * callback gets the result of that check.
+     * <p>
      * @param callback
      */
-    public synchronized void checkAccess(LicenseCheckerCallback callback) {
+    public void checkAccess(final LicenseCheckerCallback callback) {
         // If we have a valid recent LICENSED response, we can skip asking
         // Market.
         if (mPolicy.allowAccess()) {
             Log.i(TAG, "Using cached license response");
             callback.allow(Policy.LICENSED);
-        } else {
-            LicenseValidator validator = new LicenseValidator(mPolicy, new NullDeviceLimiter(),
-                    callback, generateNonce(), mPackageName, mVersionCode);
-
-            if (mService == null) {
-                Log.i(TAG, "Binding to licensing service.");
-                try {
-                	 Intent serviceIntent = new Intent(
-                	         new String(Base64.decode("Y29tLmFuZHJvaWQudmVuZGluZy5saWNlbnNpbmcuSUxpY2Vuc2luZ1NlcnZpY2U=")));
-        	         serviceIntent.setPackage("com.android.vending");
-
-        	         boolean bindResult = mContext
-        	                 .bindService(
-        	                   serviceIntent,
-        	                   this, // ServiceConnection.
-        	                   Context.BIND_AUTO_CREATE);
-                    if (bindResult) {
-                        mPendingChecks.offer(validator);
-                    } else {
-                        Log.e(TAG, "Could not bind to service.");
-                        handleServiceConnectionError(validator);
-                    }
-                } catch (SecurityException e) {
-                    callback.applicationError(LicenseCheckerCallback.ERROR_MISSING_PERMISSION);
-                } catch (Base64DecoderException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                mPendingChecks.offer(validator);
-                runChecks();
+        } else if (!mHandler.post(new Runnable() {
+            public void run() {
+                startCheck(callback);
             }
+        })) {
+            Log.e(TAG, "checkAccess called after onDestroy.");
         }
     }
 
-    private void runChecks() {
-        LicenseValidator validator;
-        while ((validator = mPendingChecks.poll()) != null) {
-            try {
-                Log.i(TAG, "Calling checkLicense on service for " + validator.getPackageName());
-                mService.checkLicense(
-                        validator.getNonce(), validator.getPackageName(),
-                        new ResultListener(validator));
-                mChecksInProgress.add(validator);
-            } catch (RemoteException e) {
-                Log.w(TAG, "RemoteException in checkLicense call.", e);
-                handleServiceConnectionError(validator);
+    private void startCheck(LicenseCheckerCallback callback) {
+        if (null != mCheck) {
+            Log.i(TAG, "Joining the license check in progress.");
+            mCheckCallbacks.add(callback);
+            return;
+        }
+        mCheckCallbacks = new CallbackList(callback);
+        mCheck = new LicenseValidator(mPolicy, new NullDeviceLimiter(),
+                mCheckCallbacks, generateNonce(), mPackageName, mVersionCode);
+        mHandler.removeCallbacks(mUnbind);
+        // the timeout covers binding too, in case the service never connects
+        Log.i(TAG, "Start monitoring timeout.");
+        mHandler.postDelayed(mOnTimeout, TIMEOUT_MS);
+
+        switch (mState) {
+            case STATE_UNBOUND:
+                bindService();
+                break;
+            case STATE_BINDING:
+                // sent once the service connects
+                break;
+            case STATE_BOUND:
+            case STATE_LINGERING:
+                mState = STATE_BOUND;
+                sendCheck();
+                break;
+        }
+    }
+
+    private void bindService() {
+        Log.i(TAG, "Binding to licensing service.");
+        try {
+            Intent serviceIntent = new Intent(
+                    new String(Base64.decode("Y29tLmFuZHJvaWQudmVuZGluZy5saWNlbnNpbmcuSUxpY2Vuc2luZ1NlcnZpY2U=")));
+            serviceIntent.setPackage("com.android.vending");
+
+            boolean bindResult = mContext
+                    .bindService(
+                            serviceIntent,
+                            this, // ServiceConnection.
+                            Context.BIND_AUTO_CREATE);
+            if (bindResult) {
+                mState = STATE_BINDING;
+            } else {
+                Log.e(TAG, "Could not bind to service.");
+                handleServiceConnectionError(mCheck);
+                finishCheck();
             }
+        } catch (SecurityException e) {
+            mCheck.getCallback().applicationError(LicenseCheckerCallback.ERROR_MISSING_PERMISSION);
+            finishCheck();
+        } catch (Base64DecoderException e) {
+            e.printStackTrace();
+            finishCheck();
+        }
+    }
+
+    private void sendCheck() {
+        LicenseValidator validator = mCheck;
+        mCheckSent = true;
+        try {
+            Log.i(TAG, "Calling checkLicense on service for " + validator.getPackageName());
+            mService.checkLicense(
+                    validator.getNonce(), validator.getPackageName(),
+                    new ResultListener(validator));
+        } catch (RemoteException e) {
+            Log.w(TAG, "RemoteException in checkLicense call.", e);
+            handleServiceConnectionError(validator);
+            finishCheck();
         }
     }
 
-    private synchronized void finishCheck(LicenseValidator validator) {
-        mChecksInProgress.remove(validator);
-        if (mChecksInProgress.isEmpty()) {
+    /**
+     * Ends the check in progress and schedules the service to be unbound,
+     * unless another check starts first.
+     */
+    private void finishCheck() {
+        mHandler.removeCallbacks(mOnTimeout);
+        mCheck = null;
+        mCheckCallbacks = null;
+        mCheckSent = false;
+        if (mState == STATE_BOUND) {
+            mState = STATE_LINGERING;
+            mHandler.postDelayed(mUnbind, mBindingLinger);
+        } else if (mState == STATE_BINDING) {
+            // nothing to wait for any more
             cleanupService();
         }
     }
 
+    /**
+     * Reports the result of one check to every callback that joined it.
+     */
+    private static class CallbackList implements LicenseCheckerCallback {
+        private final ArrayList<LicenseCheckerCallback> mCallbacks =
+                new ArrayList<LicenseCheckerCallback>(1);
+
+        CallbackList(LicenseCheckerCallback callback) {
+            mCallbacks.add(callback);
+        }
+
+        void add(LicenseCheckerCallback callback) {
+            mCallbacks.add(callback);
+        }
+
+        public void allow(int reason) {
+            for (LicenseCheckerCallback callback : mCallbacks) {
+                callback.allow(reason);
+            }
+        }
+
+        public void dontAllow(int reason) {
+            for (LicenseCheckerCallback callback : mCallbacks) {
+                callback.dontAllow(reason);
+            }
+        }
+
+        public void applicationError(int errorCode) {
+            for (LicenseCheckerCallback callback : mCallbacks) {
+                callback.applicationError(errorCode);
+            }
+        }
+    }
+
     private class ResultListener extends ILicenseResultListener.Stub {
         private final LicenseValidator mValidator;
-        private Runnable mOnTimeout;
 
         public ResultListener(LicenseValidator validator) {
             mValidator = validator;
-            mOnTimeout = new Runnable() {
-                public void run() {
-                    Log.i(TAG, "Check timed out.");
-                    handleServiceConnectionError(mValidator);
-                    finishCheck(mValidator);
-                }
-            };
-            startTimeout();
         }
 
         private static final int ERROR_CONTACTING_SERVER = 0x101;
@@ -224,10 +313,9 @@ public class LicenseChecker implements ServiceConnection {
                 public void run() {
                     Log.i(TAG, "Received response.");
                     // Make sure it hasn't already timed out.
-                    if (mChecksInProgress.contains(mValidator)) {
-                        clearTimeout();
-                        mValidator.verify(mPublicKey, responseCode, signedData, signature);
-                        finishCheck(mValidator);
+                    if (mCheck == mValidator) {
+                        mValidator.verify(mVerifier, responseCode, signedData, signature);
+                        finishCheck();
                     }
                     if (DEBUG_LICENSE_ERROR) {
                         boolean logResponse;
@@ -262,36 +350,52 @@ public class LicenseChecker implements ServiceConnection {
                 }
             });
         }
-
-        private void startTimeout() {
-            Log.i(TAG, "Start monitoring timeout.");
-            mHandler.postDelayed(mOnTimeout, TIMEOUT_MS);
-        }
-
-        private void clearTimeout() {
-            Log.i(TAG, "Clearing timeout.");
-            mHandler.removeCallbacks(mOnTimeout);
-        }
     }
 
-    public synchronized void onServiceConnected(ComponentName name, IBinder service) {
-        mService = ILicensingService.Stub.asInterface(service);
-        runChecks();
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        final ILicensingService licensingService = ILicensingService.Stub.asInterface(service);
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mState != STATE_BINDING) {
+                    // unbound while the connection was on its way
+                    return;
+                }
+                mService = licensingService;
+                mState = STATE_BOUND;
+                if (null != mCheck && !mCheckSent) {
+                    sendCheck();
+                }
+            }
+        });
     }
 
-    public synchronized void onServiceDisconnected(ComponentName name) {
+    public void onServiceDisconnected(ComponentName name) {
         // Called when the connection with the service has been
         // unexpectedly disconnected. That is, Market crashed.
         // If there are any checks in progress, the timeouts will handle them.
         Log.w(TAG, "Service unexpectedly disconnected.");
-        mService = null;
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mState == STATE_UNBOUND) {
+                    return;
+                }
+                // the binding stays; the service connects again once it restarts
+                mService = null;
+                mCheckSent = false;
+                mState = STATE_BINDING;
+                mHandler.removeCallbacks(mUnbind);
+                if (null == mCheck) {
+                    cleanupService();
+                }
+            }
+        });
     }
 
     /**
      * Generates policy response for service connection errors, as a result of
      * disconnections or timeouts.
      */
-    private synchronized void handleServiceConnectionError(LicenseValidator validator) {
+    private void handleServiceConnectionError(LicenseValidator validator) {
         mPolicy.processServerResponse(Policy.RETRY, null);
 
         if (mPolicy.allowAccess()) {
@@ -303,7 +407,7 @@ public class LicenseChecker implements ServiceConnection {
 
     /** Unbinds service if necessary and removes reference to it. */
     private void cleanupService() {
-        if (mService != null) {
+        if (mState != STATE_UNBOUND) {
             try {
                 mContext.unbindService(this);
             } catch (IllegalArgumentException e) {
@@ -312,6 +416,7 @@ public class LicenseChecker implements ServiceConnection {
                 Log.e(TAG, "Unable to unbind from licensing service (already unbound)");
             }
             mService = null;
+            mState = STATE_UNBOUND;
         }
     }
 
@@ -323,9 +428,15 @@ public class LicenseChecker implements ServiceConnection {
      * circumstances, such as during screen rotation if an Activity requests the
      * license check or when the user exits the application.
      */
-    public synchronized void onDestroy() {
-        cleanupService();
-        mHandler.getLooper().quit();
+    public void onDestroy() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mHandler.removeCallbacks(mOnTimeout);
+                mHandler.removeCallbacks(mUnbind);
+                cleanupService();
+                mHandler.getLooper().quit();
+            }
+        });
     }
 
     /** Generates a nonce (number used once). */
@@ -23,9 +23,6 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
 import java.security.SignatureException;
 
 /**
@@ -76,17 +73,17 @@ class LicenseValidator {
         return mPackageName;
     }
 
-    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
-
     /**
      * Verifies the response from server and calls appropriate callback method.
      *
-     * @param publicKey public key associated with the developer account
+     * @param verifier checks signatures with the public key associated with
+     *            the developer account
      * @param responseCode server response code
      * @param signedData signed data from server
      * @param signature server signature
      */
-    public void verify(PublicKey publicKey, int responseCode, String signedData, String signature) {
+    public void verify(SignatureVerifier verifier, int responseCode, String signedData,
+            String signature) {
         String userId = null;
         // Skip signature check for unsuccessful requests
         ResponseData data = null;
@@ -94,18 +91,11 @@ class LicenseValidator {
                 responseCode == LICENSED_OLD_KEY) {
             // Verify signature.
             try {
-                Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-                sig.initVerify(publicKey);
-                sig.update(signedData.getBytes());
-
-                if (!sig.verify(Base64.decode(signature))) {
+                if (!verifier.verify(signedData.getBytes(), Base64.decode(signature))) {
                     Log.e(TAG, "Signature verification failed.");
                     handleInvalidResponse();
                     return;
                 }
-            } catch (NoSuchAlgorithmException e) {
-                // This can't happen on an Android compatible device.
-                throw new RuntimeException(e);
             } catch (InvalidKeyException e) {
                 handleApplicationError(LicenseCheckerCallback.ERROR_INVALID_PUBLIC_KEY);
                 return;
@@ -124,6 +114,8 @@ class LicenseValidator {
             // Parse and validate response.
             try {
                 data = ResponseData.parse(signedData);
+                data.signedData = signedData;
+                data.signature = signature;
             } catch (IllegalArgumentException e) {
                 Log.e(TAG, "Could not parse response.");
                 handleInvalidResponse();
@@ -19,16 +19,34 @@ package com.google.android.vending.licensing;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * An wrapper for SharedPreferences that transparently performs data obfuscation.
+ * <p>
+ * All of the values are kept together in one obfuscated preference. They are
+ * read and unobfuscated together the first time one is needed, and served
+ * from that snapshot afterwards. Values put since the last commit are
+ * obfuscated and written together on commit, which does not wait for the
+ * disk. Values stored one preference at a time by earlier versions are read
+ * once and moved into the snapshot on the next commit.
  */
 public class PreferenceObfuscator {
 
     private static final String TAG = "PreferenceObfuscator";
+    private static final String UTF8 = "UTF-8";
+    private static final String PREF_SNAPSHOT = "snapshot";
 
     private final SharedPreferences mPreferences;
     private final Obfuscator mObfuscator;
-    private SharedPreferences.Editor mEditor;
+    // the committed values, never modified; null until first read
+    private Map<String, String> mSnapshot;
+    private HashMap<String, String> mEdits;
 
     /**
      * Constructor.
@@ -39,39 +57,111 @@ public class PreferenceObfuscator {
     public PreferenceObfuscator(SharedPreferences sp, Obfuscator o) {
         mPreferences = sp;
         mObfuscator = o;
-        mEditor = null;
+        mEdits = null;
+    }
+
+    public synchronized void putString(String key, String value) {
+        if (mEdits == null) {
+            mEdits = new HashMap<String, String>();
+        }
+        mEdits.put(key, value);
+    }
+
+    /**
+     * Returns a committed value; values put since the last commit are not
+     * visible yet.
+     */
+    public synchronized String getString(String key, String defValue) {
+        String value = getSnapshot().get(key);
+        return value != null ? value : defValue;
+    }
+
+    public synchronized void commit() {
+        if (mEdits == null) {
+            return;
+        }
+        HashMap<String, String> values = new HashMap<String, String>(getSnapshot());
+        values.putAll(mEdits);
+        mEdits = null;
+        mSnapshot = Collections.unmodifiableMap(values);
+        // clear() also drops the values stored one at a time by older versions
+        mPreferences.edit()
+                .clear()
+                .putString(PREF_SNAPSHOT, mObfuscator.obfuscate(encode(values), PREF_SNAPSHOT))
+                .apply();
     }
 
-    public void putString(String key, String value) {
-        if (mEditor == null) {
-            mEditor = mPreferences.edit();
+    private Map<String, String> getSnapshot() {
+        if (mSnapshot == null) {
+            mSnapshot = Collections.unmodifiableMap(load());
         }
-        String obfuscatedValue = mObfuscator.obfuscate(value, key);
-        mEditor.putString(key, obfuscatedValue);
+        return mSnapshot;
     }
 
-    public String getString(String key, String defValue) {
-        String result;
-        String value = mPreferences.getString(key, null);
-        if (value != null) {
+    private HashMap<String, String> load() {
+        HashMap<String, String> values = new HashMap<String, String>();
+        String snapshot = mPreferences.getString(PREF_SNAPSHOT, null);
+        if (snapshot != null) {
             try {
-                result = mObfuscator.unobfuscate(value, key);
+                decode(mObfuscator.unobfuscate(snapshot, PREF_SNAPSHOT), values);
             } catch (ValidationException e) {
                 // Unable to unobfuscate, data corrupt or tampered
-                Log.w(TAG, "Validation error while reading preference: " + key);
-                result = defValue;
+                Log.w(TAG, "Validation error while reading preferences");
+                values.clear();
             }
-        } else {
-            // Preference not found
-            result = defValue;
+            return values;
         }
-        return result;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                values.put(entry.getKey(),
+                        mObfuscator.unobfuscate((String) entry.getValue(), entry.getKey()));
+            } catch (ValidationException e) {
+                Log.w(TAG, "Validation error while reading preference: " + entry.getKey());
+            }
+        }
+        return values;
     }
 
-    public void commit() {
-        if (mEditor != null) {
-            mEditor.commit();
-            mEditor = null;
+    private static String encode(Map<String, String> values) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(URLEncoder.encode(entry.getKey(), UTF8)).append('=')
+                        .append(URLEncoder.encode(entry.getValue(), UTF8));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+        return sb.toString();
+    }
+
+    private static void decode(String encoded, Map<String, String> values)
+            throws ValidationException {
+        if (encoded.length() == 0) {
+            return;
+        }
+        try {
+            for (String pair : encoded.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator < 0) {
+                    throw new ValidationException("Malformed preferences");
+                }
+                values.put(URLDecoder.decode(pair.substring(0, separator), UTF8),
+                        URLDecoder.decode(pair.substring(separator + 1), UTF8));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException("Malformed preferences");
         }
     }
 }
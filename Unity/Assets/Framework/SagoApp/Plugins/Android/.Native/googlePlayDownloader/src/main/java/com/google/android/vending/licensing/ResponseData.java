@@ -33,6 +33,9 @@ public class ResponseData {
     public long timestamp;
     /** Response-specific data. */
     public String extra;
+    /** The response as signed by the server, and its Base64-encoded signature. */
+    public String signedData;
+    public String signature;
 
     /**
      * Parses response string into ResponseData.
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.vending.licensing;
+
+import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64DecoderException;
+
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks license response signatures against one public key. Verifiers are
+ * kept for the life of the process, one per key, so the key is only decoded
+ * once however many {@link LicenseChecker}s use it, and the Signature is
+ * initialized once and reused for every response after the first.
+ */
+class SignatureVerifier {
+    private static final String TAG = "LicenseChecker";
+
+    private static final String KEY_FACTORY_ALGORITHM = "RSA";
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    private static final HashMap<String, SignatureVerifier> sVerifiers =
+            new HashMap<String, SignatureVerifier>();
+
+    private final PublicKey mPublicKey;
+    /**
+     * A Signature ready to verify, or null while it is in use. Checks run on
+     * short-lived handler threads, one per LicenseChecker, so a Signature
+     * kept per thread would rarely be used twice; a single idle one is handed
+     * from check to check instead, and a concurrent check makes its own.
+     */
+    private final AtomicReference<Signature> mIdleSignature = new AtomicReference<Signature>();
+
+    private SignatureVerifier(PublicKey publicKey) {
+        mPublicKey = publicKey;
+    }
+
+    /**
+     * Returns the verifier for a key, creating it on first use.
+     *
+     * @param encodedPublicKey Base64-encoded RSA public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    static SignatureVerifier forKey(String encodedPublicKey) {
+        synchronized (sVerifiers) {
+            SignatureVerifier verifier = sVerifiers.get(encodedPublicKey);
+            if (null == verifier) {
+                verifier = new SignatureVerifier(generatePublicKey(encodedPublicKey));
+                sVerifiers.put(encodedPublicKey, verifier);
+            }
+            return verifier;
+        }
+    }
+
+    /**
+     * Generates a PublicKey instance from a string containing the
+     * Base64-encoded public key.
+     * 
+     * @param encodedPublicKey Base64-encoded public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    private static PublicKey generatePublicKey(String encodedPublicKey) {
+        try {
+            byte[] decodedKey = Base64.decode(encodedPublicKey);
+            KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
+
+            return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
+        } catch (NoSuchAlgorithmException e) {
+            // This won't happen in an Android-compatible environment.
+            throw new RuntimeException(e);
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Could not decode from Base64.");
+            throw new IllegalArgumentException(e);
+        } catch (InvalidKeySpecException e) {
+            Log.e(TAG, "Invalid key specification.");
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Verifies a signature over the given data.
+     *
+     * @throws InvalidKeyException if the key cannot verify SHA1withRSA
+     *             signatures
+     */
+    public boolean verify(byte[] data, byte[] signature) throws InvalidKeyException,
+            SignatureException {
+        Signature sig = mIdleSignature.getAndSet(null);
+        if (null == sig) {
+            try {
+                sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // This can't happen on an Android compatible device.
+                throw new RuntimeException(e);
+            }
+            sig.initVerify(mPublicKey);
+        }
+        // verify() leaves the Signature as it was after initVerify()
+        sig.update(data);
+        boolean verified = sig.verify(signature);
+        mIdleSignature.set(sig);
+        return verified;
+    }
+}
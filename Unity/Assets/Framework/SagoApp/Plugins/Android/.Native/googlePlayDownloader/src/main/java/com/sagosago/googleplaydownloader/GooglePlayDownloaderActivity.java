@@ -1,6 +1,7 @@
 package com.sagosago.googleplaydownloader;
 
 import android.app.Activity;
+import android.app.Application;
 import android.app.PendingIntent;
 import android.os.Build;
 import android.os.Build.VERSION;
@@ -49,6 +50,14 @@ public class GooglePlayDownloaderActivity extends Activity implements IDownloade
     
 	private boolean runningUnity = false;
     
+	/*
+	 * The service of the last download shown, kept after this activity is
+	 * finished so that the game can still move the download to the background
+	 */
+	private static IDownloaderService sRemoteService;
+	
+	private static boolean sLifecycleCallbacksRegistered = false;
+    
 	private static boolean debugMode;
 	
 	public static final String DEBUG_PREFIX = "SAGOGooglePlayDownloader->";
@@ -164,6 +173,46 @@ public class GooglePlayDownloaderActivity extends Activity implements IDownloade
     	}
     }
     
+    /*
+     * Moves the download to the background rate whenever another activity
+     * of the app, such as the game, comes to the front. onServiceConnected
+     * moves it back to full speed when this activity returns.
+     */
+    private void registerDownloadPriorityCallbacks() {
+    	if (sLifecycleCallbacksRegistered) {
+    		return;
+    	}
+    	sLifecycleCallbacksRegistered = true;
+    	getApplication().registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+    		
+    		@Override
+    		public void onActivityResumed(Activity activity) {
+    			if (null != sRemoteService && !(activity instanceof GooglePlayDownloaderActivity)) {
+    				GooglePlayDownloaderActivity.log(LOG_TAG, "Moving the download to the background");
+    				sRemoteService.setDownloadPriority(IDownloaderService.PRIORITY_BACKGROUND);
+    			}
+    		}
+    		
+    		@Override
+    		public void onActivityCreated(Activity activity, Bundle savedInstanceState) { }
+    		
+    		@Override
+    		public void onActivityStarted(Activity activity) { }
+    		
+    		@Override
+    		public void onActivityPaused(Activity activity) { }
+    		
+    		@Override
+    		public void onActivityStopped(Activity activity) { }
+    		
+    		@Override
+    		public void onActivitySaveInstanceState(Activity activity, Bundle outState) { }
+    		
+    		@Override
+    		public void onActivityDestroyed(Activity activity) { }
+    	});
+    }
+    
     /**
      * Connect the stub to our service on resume.
      */
@@ -229,6 +278,7 @@ public class GooglePlayDownloaderActivity extends Activity implements IDownloade
     private void initializeDownloadUI() {
 
     	mDownloaderClientStub = DownloaderClientMarshaller.CreateStub(this, GooglePlayDownloaderService.class);
+    	registerDownloadPriorityCallbacks();
         
         // Remove notification bar
         this.getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, WindowManager.LayoutParams.FLAG_FULLSCREEN);
@@ -261,6 +311,9 @@ public class GooglePlayDownloaderActivity extends Activity implements IDownloade
 		
         mRemoteService = DownloaderServiceMarshaller.CreateProxy(m);
         mRemoteService.onClientUpdated(mDownloaderClientStub.getMessenger());
+        sRemoteService = mRemoteService;
+        // the progress is on screen again, so download at full speed
+        mRemoteService.setDownloadPriority(IDownloaderService.PRIORITY_FOREGROUND);
         
 	}
 	
@@ -289,9 +342,9 @@ public class GooglePlayDownloaderActivity extends Activity implements IDownloade
 	@Override
 	public void onDownloadProgress(DownloadProgressInfo progress) {
 		
-        progress.mOverallTotal = progress.mOverallTotal;
-        float p = ((float)progress.mOverallProgress/(float)progress.mOverallTotal)*100.0f;
-        mPB.setProgress((int) p);
+        if (progress.mOverallTotal > 0) {
+            mPB.setProgress((int) (progress.mOverallProgress * 100 / progress.mOverallTotal));
+        }
         
 	}
 	
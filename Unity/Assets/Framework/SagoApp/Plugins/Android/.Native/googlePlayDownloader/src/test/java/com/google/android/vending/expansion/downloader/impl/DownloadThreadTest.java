@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.expansion.downloader.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.vending.expansion.downloader.Helpers;
+import com.google.android.vending.expansion.downloader.IDownloaderClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs DownloadThread against a stub server on the loopback interface, to
+ * check what a resumed download past 2 GB stores, reports and leaves on
+ * disk. The partial file is sparse, so the tests need no real disk space,
+ * and only its last megabyte is transferred.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class DownloadThreadTest {
+    private static final long PARTIAL_BYTES = 3L << 30;
+    private static final long TAIL_BYTES = 1 << 20;
+    private static final long TOTAL_BYTES = PARTIAL_BYTES + TAIL_BYTES;
+    private static final String FILE_NAME = "main.1.com.sagosago.test.obb";
+    private static final String PATH = "/" + FILE_NAME;
+    private static final String ETAG = "\"main-3g\"";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-");
+
+    /** What the stub server does with the next request. */
+    private static final int SERVE_ALL = 0;
+    private static final int SERVE_HALF = 1;
+    private static final int SERVE_UNAVAILABLE = 2;
+
+    private volatile int mServeMode;
+    private volatile String mRequestRange;
+    private volatile String mRequestETag;
+
+    private HttpServer mServer;
+    private TestDownloaderService mService;
+    private TestDownloadNotification mNotification;
+    private DownloadInfo mInfo;
+    private File mTempFile;
+    private File mFinalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        // every test gets a new application, so it needs a new database
+        ReflectionHelpers.setStaticField(DownloadsDB.class, "mDownloadsDB", null);
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+
+        mService = Robolectric.setupService(TestDownloaderService.class);
+        mNotification = new TestDownloadNotification(mService);
+        new File(Helpers.getSaveFilePath(mService)).mkdirs();
+        mTempFile = new File(mService.generateTempSaveFileName(FILE_NAME));
+        mFinalFile = new File(Helpers.generateSaveFileName(mService, FILE_NAME));
+        RandomAccessFile partial = new RandomAccessFile(mTempFile, "rw");
+        try {
+            partial.setLength(PARTIAL_BYTES);
+        } finally {
+            partial.close();
+        }
+
+        mInfo = new DownloadInfo(0, FILE_NAME, mService.getPackageName());
+        mInfo.mUri = "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+        mInfo.mETag = ETAG;
+        mInfo.mTotalBytes = TOTAL_BYTES;
+        mInfo.mCurrentBytes = PARTIAL_BYTES;
+        mInfo.mStatus = DownloaderService.STATUS_RUNNING;
+        DownloadsDB.getDB(mService).updateDownload(mInfo);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mTempFile.delete();
+        mFinalFile.delete();
+    }
+
+    @Test
+    public void resumesPastTwoGigabytes() throws IOException {
+        mServeMode = SERVE_ALL;
+        new DownloadThread(mInfo, mService, mNotification).run();
+
+        assertEquals("bytes=" + PARTIAL_BYTES + "-", mRequestRange);
+        assertEquals(ETAG, mRequestETag);
+        assertEquals(DownloaderService.STATUS_SUCCESS, mInfo.mStatus);
+        assertEquals(TOTAL_BYTES, mInfo.mCurrentBytes);
+        assertEquals(0, mInfo.mNumFailed);
+
+        assertFalse(mTempFile.exists());
+        assertEquals(TOTAL_BYTES, mFinalFile.length());
+        assertTail(mFinalFile, PARTIAL_BYTES, TOTAL_BYTES);
+
+        DownloadInfo stored = getStoredInfo();
+        assertEquals(DownloaderService.STATUS_SUCCESS, stored.mStatus);
+        assertEquals(TOTAL_BYTES, stored.mCurrentBytes);
+    }
+
+    @Test
+    public void reportsOnlyTheBytesOfThisSession() {
+        mServeMode = SERVE_ALL;
+        new DownloadThread(mInfo, mService, mNotification).run();
+
+        // the service adds the bytes it found on disk at the start, so the
+        // thread must not report the resumed part of the file again
+        assertFalse(mService.mReportedBytes.isEmpty());
+        for (long reported : mService.mReportedBytes) {
+            assertTrue(reported > 0 && reported <= TAIL_BYTES);
+        }
+
+        assertEquals(IDownloaderClient.STATE_CONNECTING, (int) mNotification.mStates.get(0));
+        assertEquals(IDownloaderClient.STATE_DOWNLOADING, (int) mNotification.mStates.get(1));
+    }
+
+    @Test
+    public void keepsProgressOfInterruptedTransfer() throws IOException {
+        mServeMode = SERVE_HALF;
+        new DownloadThread(mInfo, mService, mNotification).run();
+
+        long expected = PARTIAL_BYTES + TAIL_BYTES / 2;
+        assertEquals(DownloaderService.STATUS_WAITING_TO_RETRY, mInfo.mStatus);
+        assertEquals(RetryPolicy.CLASS_NETWORK, mInfo.mRetryClass);
+        assertEquals(1, mInfo.mNumFailed);
+        assertEquals(0, mInfo.mNumServerFailed);
+        assertEquals(expected, mInfo.mCurrentBytes);
+
+        // the partial file is kept for the next attempt
+        assertFalse(mFinalFile.exists());
+        assertEquals(expected, mTempFile.length());
+        assertTail(mTempFile, PARTIAL_BYTES, expected);
+
+        DownloadInfo stored = getStoredInfo();
+        assertEquals(DownloaderService.STATUS_WAITING_TO_RETRY, stored.mStatus);
+        assertEquals(expected, stored.mCurrentBytes);
+        assertEquals(1, stored.mNumFailed);
+    }
+
+    @Test
+    public void countsServerErrorWithoutLosingProgress() {
+        mServeMode = SERVE_UNAVAILABLE;
+        new DownloadThread(mInfo, mService, mNotification).run();
+
+        assertEquals(DownloaderService.STATUS_WAITING_TO_RETRY, mInfo.mStatus);
+        assertEquals(RetryPolicy.CLASS_SERVER, mInfo.mRetryClass);
+        assertEquals(1, mInfo.mNumFailed);
+        assertEquals(1, mInfo.mNumServerFailed);
+        assertEquals(PARTIAL_BYTES, mInfo.mCurrentBytes);
+        assertEquals(PARTIAL_BYTES, mTempFile.length());
+        assertTrue(mService.mReportedBytes.isEmpty());
+
+        DownloadInfo stored = getStoredInfo();
+        assertEquals(1, stored.mNumServerFailed);
+        assertEquals(PARTIAL_BYTES, stored.mCurrentBytes);
+    }
+
+    private DownloadInfo getStoredInfo() {
+        DownloadInfo[] infos = DownloadsDB.getDB(mService).getDownloads();
+        assertEquals(1, infos.length);
+        return infos[0];
+    }
+
+    /**
+     * The content of the served file at the given offset. Only the part
+     * after the partial file is ever served.
+     */
+    private static byte byteAt(long offset) {
+        return (byte) (offset % 251);
+    }
+
+    private static void assertTail(File file, long start, long end) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(start);
+            byte[] data = new byte[64 * 1024];
+            long offset = start;
+            while (offset < end) {
+                int bytesRead = in.read(data, 0, (int) Math.min(data.length, end - offset));
+                assertTrue(bytesRead > 0);
+                for (int i = 0; i < bytesRead; i++) {
+                    assertEquals(byteAt(offset + i), data[i]);
+                }
+                offset += bytesRead;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serves the rest of the file from the start of an open-ended range, all
+     * of it or only half before hanging up, or fails with 503.
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        mRequestRange = exchange.getRequestHeaders().getFirst("Range");
+        mRequestETag = exchange.getRequestHeaders().getFirst("If-Match");
+        try {
+            if (SERVE_UNAVAILABLE == mServeMode) {
+                exchange.getResponseHeaders().set("Retry-After", "60");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+                return;
+            }
+            long start = 0;
+            int statusCode = HttpURLConnection.HTTP_OK;
+            Matcher m = null == mRequestRange ? null : RANGE_PATTERN.matcher(mRequestRange);
+            if (null != m && m.matches()) {
+                start = Long.parseLong(m.group(1));
+                statusCode = HttpURLConnection.HTTP_PARTIAL;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (TOTAL_BYTES - 1) + "/" + TOTAL_BYTES);
+            }
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.sendResponseHeaders(statusCode, TOTAL_BYTES - start);
+            long end = SERVE_HALF == mServeMode ? start + (TOTAL_BYTES - start) / 2 : TOTAL_BYTES;
+            OutputStream out = exchange.getResponseBody();
+            byte[] data = new byte[64 * 1024];
+            for (long offset = start; offset < end;) {
+                int length = (int) Math.min(data.length, end - offset);
+                for (int i = 0; i < length; i++) {
+                    data[i] = byteAt(offset + i);
+                }
+                out.write(data, 0, length);
+                offset += length;
+            }
+            out.flush();
+        } finally {
+            // closing a response that is cut short hangs up on the client
+            exchange.close();
+        }
+    }
+
+    /**
+     * A service that always has a usable network, and that records the
+     * progress it is told about.
+     */
+    public static class TestDownloaderService extends DownloaderService {
+        final List<Long> mReportedBytes = new ArrayList<Long>();
+
+        @Override
+        public String getPublicKey() {
+            return null;
+        }
+
+        @Override
+        public byte[] getSALT() {
+            return new byte[0];
+        }
+
+        @Override
+        public String getAlarmReceiverClassName() {
+            return null;
+        }
+
+        @Override
+        public int getNetworkAvailabilityState(DownloadsDB db) {
+            return NETWORK_OK;
+        }
+
+        @Override
+        public synchronized void notifyUpdateBytes(long totalBytesSoFar) {
+            mReportedBytes.add(totalBytesSoFar);
+            super.notifyUpdateBytes(totalBytesSoFar);
+        }
+    }
+
+    /**
+     * A notification that records the states it is told about.
+     */
+    private static class TestDownloadNotification extends DownloadNotification {
+        final List<Integer> mStates = new ArrayList<Integer>();
+
+        TestDownloadNotification(Context ctx) {
+            super(ctx, "test");
+        }
+
+        @Override
+        public synchronized void onDownloadStateChanged(int newState) {
+            mStates.add(newState);
+            super.onDownloadStateChanged(newState);
+        }
+    }
+}